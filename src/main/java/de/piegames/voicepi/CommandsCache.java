@@ -1,94 +1,211 @@
 package de.piegames.voicepi;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
+/**
+ * Caches the language model and dictionary generated for a set of commands. Each entry is stored under a hash of its sorted commands, as one {@code .lm} and
+ * one {@code .dic} file in the cache directory. They are plain text, so that Sphinx can read them directly from their {@link CacheElement#getLmPath() paths}.
+ * Each entry may also have a directory with {@link CacheElement#addGrammar(String, String) grammars} for subsets of its commands. A small index file remembers
+ * when each entry was used last, the least recently used entries get evicted once there are too many.<br/>
+ * All files are written to a temporary file first and then renamed, so a crash never leaves a broken entry behind.
+ */
 public class CommandsCache {
 
-	protected final Log				log		= LogFactory.getLog(getClass());
+	protected static final String		INDEX				= "index.json";
+	/** Access times are only written to the index if they changed by more than this, so that using a cached entry doesn't have to write anything */
+	protected static final long			ACCESS_RESOLUTION	= 60 * 60 * 1000;
 
-	protected Path					path;
-	protected List<CacheElement>	cache	= new LinkedList<>();
+	protected final Log					log					= LogFactory.getLog(getClass());
 
-	public CommandsCache(Path path) {
-		log.debug("Caching command data at " + path.toAbsolutePath());
-		this.path = Objects.requireNonNull(path);
+	protected final Path				directory;
+	/** The time each entry was last accessed, by key */
+	protected final Map<String, Long>	index				= new HashMap<>();
+	protected boolean					dirty;
+
+	public CommandsCache(Path directory) {
+		this.directory = Objects.requireNonNull(directory);
+		log.debug("Caching command data at " + directory.toAbsolutePath());
 	}
 
-	public void loadFromCache() throws IOException {
-		log.debug("Loading cache from file");
-		cache.clear();
+	/** Reads the index. Entries whose files are missing are dropped. */
+	public void loadIndex() throws IOException {
+		index.clear();
+		dirty = false;
+		Path path = directory.resolve(INDEX);
 		if (!Files.exists(path)) {
-			log.info("No cache file found at given path");
+			log.info("No cache index found at given path");
 			return;
 		}
-		for (JsonElement e : new JsonParser().parse(Files.newBufferedReader(path)).getAsJsonArray()) {
-			JsonObject o = e.getAsJsonObject();
-			Set<String> commands = new HashSet<>();
-			for (JsonElement command : o.getAsJsonArray("commands"))
-				commands.add(command.getAsString());
-			cache.add(new CacheElement(
-					commands,
-					o.getAsJsonPrimitive("last-modified").getAsLong(),
-					o.getAsJsonPrimitive("lm").getAsString(),
-					o.getAsJsonPrimitive("dic").getAsString()));
+		try (Reader in = Files.newBufferedReader(path)) {
+			for (Map.Entry<String, JsonElement> e : new JsonParser().parse(in).getAsJsonObject().entrySet())
+				if (Files.exists(lmPath(e.getKey())) && Files.exists(dicPath(e.getKey())))
+					index.put(e.getKey(), e.getValue().getAsLong());
+				else
+					dirty = true;
+		} catch (RuntimeException e) {
+			log.warn("Cache index is corrupted, starting with an empty cache", e);
+			dirty = true;
 		}
 	}
 
+	/** Looks up the entry for these commands and marks it as used */
 	public Optional<CacheElement> check(Set<String> commands) {
-		return cache.stream().filter(elem -> elem.commands.equals(commands)).findFirst();
+		String key = key(commands);
+		Long accessed = index.get(key);
+		if (accessed == null)
+			return Optional.empty();
+		long now = System.currentTimeMillis();
+		index.put(key, now);
+		if (now - accessed > ACCESS_RESOLUTION)
+			dirty = true;
+		return Optional.of(new CacheElement(key));
+	}
+
+	/** Stores the model for these commands and adds it to the index. The index itself is only written by {@link #saveIndex(int)}. */
+	public CacheElement addToCache(Set<String> commands, String lm, String dic) throws IOException {
+		String key = key(commands);
+		Files.createDirectories(directory);
+		writeAtomically(lmPath(key), lm.getBytes(StandardCharsets.UTF_8));
+		writeAtomically(dicPath(key), dic.getBytes(StandardCharsets.UTF_8));
+		index.put(key, System.currentTimeMillis());
+		dirty = true;
+		return new CacheElement(key);
+	}
+
+	/** Evicts the least recently used entries until there are at most {@code maxElements} left and writes the index if anything changed */
+	public void saveIndex(int maxElements) throws IOException {
+		if (index.size() > maxElements) {
+			List<String> keys = new ArrayList<>(index.keySet());
+			keys.sort(Comparator.comparing(index::get));
+			for (String key : keys.subList(0, keys.size() - maxElements)) {
+				log.debug("Evicting cache entry " + key);
+				index.remove(key);
+				Files.deleteIfExists(lmPath(key));
+				Files.deleteIfExists(dicPath(key));
+				deleteDirectory(grammarPath(key));
+			}
+			dirty = true;
+		}
+		if (!dirty)
+			return;
+		JsonObject json = new JsonObject();
+		index.forEach((key, accessed) -> json.add(key, new JsonPrimitive(accessed)));
+		Files.createDirectories(directory);
+		writeAtomically(directory.resolve(INDEX), json.toString().getBytes(StandardCharsets.UTF_8));
+		dirty = false;
 	}
 
-	public void addToCache(Set<String> commands, String lm, String dic) {
-		cache.removeIf(elem -> elem.commands.equals(commands));
-		cache.add(new CacheElement(commands, System.currentTimeMillis(), lm, dic));
+	public int size() {
+		return index.size();
 	}
 
-	public void saveToFile(int maxElements) throws IOException {
-		log.debug("Saving maximally of " + maxElements + " to the cache file.");
-		JsonArray array = new JsonArray(maxElements);
-		cache.stream().sorted(Comparator.<CacheElement> comparingLong(e -> e.lastModified).reversed()).limit(maxElements).forEach(e -> array.add(e.toJson()));
-		Files.write(path, new GsonBuilder().setPrettyPrinting().create().toJson(array).getBytes());
+	/** A stable hash of the commands, independent of their order */
+	public static String key(Set<String> commands) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			commands.stream().sorted().forEach(command -> {
+				digest.update(command.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) '\n');
+			});
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest())
+				key.append(String.format("%02x", b));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation has to support SHA-256
+			throw new InternalError(e);
+		}
+	}
+
+	protected Path lmPath(String key) {
+		return directory.resolve(key + ".lm");
 	}
 
-	public static class CacheElement {
+	protected Path dicPath(String key) {
+		return directory.resolve(key + ".dic");
+	}
 
-		public final Set<String>	commands;
-		public final long			lastModified;
-		public final String			lm, dic;
+	protected Path grammarPath(String key) {
+		return directory.resolve(key + ".grammars");
+	}
+
+	protected static void deleteDirectory(Path path) throws IOException {
+		if (!Files.isDirectory(path))
+			return;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+			for (Path file : files)
+				Files.deleteIfExists(file);
+		}
+		Files.deleteIfExists(path);
+	}
+
+	/** Writes to a temporary file next to the target and renames it */
+	protected static void writeAtomically(Path path, byte[] data) throws IOException {
+		Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, data);
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	public class CacheElement {
+
+		public final String	key;
+
+		protected CacheElement(String key) {
+			this.key = key;
+		}
+
+		public Path getLmPath() {
+			return lmPath(key);
+		}
+
+		public Path getDicPath() {
+			return dicPath(key);
+		}
 
-		public CacheElement(Set<String> commands, long lastModified, String lm, String dic) {
-			this.commands = commands;
-			this.lastModified = lastModified;
-			this.lm = lm;
-			this.dic = dic;
+		/** The directory containing the grammars of this entry. It only exists once a grammar has been added. */
+		public Path getGrammarDirectory() {
+			return grammarPath(key);
 		}
 
-		public JsonElement toJson() {
-			JsonObject ret = new JsonObject();
-			ret.add("last-modified", new JsonPrimitive(lastModified));
-			ret.add("lm", new JsonPrimitive(lm));
-			ret.add("dic", new JsonPrimitive(dic));
-			JsonArray commands = new JsonArray();
-			this.commands.forEach(command -> commands.add(new JsonPrimitive(command)));
-			ret.add("commands", commands);
-			return ret;
+		/** Writes a grammar into the {@link #getGrammarDirectory() grammar directory}, unless a file with that name exists already */
+		public Path addGrammar(String fileName, String content) throws IOException {
+			Path path = grammarPath(key).resolve(fileName);
+			if (!Files.exists(path)) {
+				Files.createDirectories(path.getParent());
+				writeAtomically(path, content.getBytes(StandardCharsets.UTF_8));
+			}
+			return path;
 		}
 	}
 }
@@ -7,7 +7,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -94,6 +96,12 @@ public class Configuration {
 		return modulesConfig.get(moduleName).getAsJsonObject();
 	}
 
+	/** Returns the configuration of the given module or {@code null} if there is none */
+	public JsonObject findModuleConfig(String moduleName) {
+		return modulesConfig == null || !modulesConfig.has(moduleName) || !modulesConfig.get(moduleName).isJsonObject() ? null
+				: modulesConfig.getAsJsonObject(moduleName);
+	}
+
 	public JsonObject getSTTConfig() {
 		return sttConfig;
 	}
@@ -119,25 +127,39 @@ public class Configuration {
 		Files.write(path, new GsonBuilder().setPrettyPrinting().create().toJson(config).getBytes());
 	}
 
+	/** The names of all modules listed in {@code active-modules} */
+	public List<String> getActiveModules() {
+		List<String> ret = new ArrayList<>();
+		for (JsonElement element : config.getAsJsonArray("active-modules"))
+			ret.add(element.getAsString());
+		return ret;
+	}
+
 	public Map<String, Module> loadModulesFromConfig(VoicePi control) {
 		// Load module
 		Map<String, Module> ret = new HashMap<>();
-		for (JsonElement element : config.getAsJsonArray("active-modules")) {
-			try {
-				String moduleName = element.getAsString();
-				JsonObject moduleConfig = getModuleConfig(moduleName);
-				Module module = (Module) Class.forName(moduleConfig
-						.getAsJsonPrimitive("class-name").getAsString())
-						.getConstructor(VoicePi.class, String.class, JsonObject.class)
-						.newInstance(control, moduleName, moduleConfig);
+		for (String moduleName : getActiveModules()) {
+			Module module = loadModuleFromConfig(control, moduleName);
+			if (module != null)
 				ret.put(moduleName, module);
-			} catch (Throwable e) {
-				log.warn("Could not instantiate module " + element.getAsString(), e);
-			}
 		}
 		return ret;
 	}
 
+	/** Creates the module with the given name from its configuration. Returns {@code null} if that fails. */
+	public Module loadModuleFromConfig(VoicePi control, String moduleName) {
+		try {
+			JsonObject moduleConfig = getModuleConfig(moduleName);
+			return (Module) Class.forName(moduleConfig
+					.getAsJsonPrimitive("class-name").getAsString())
+					.getConstructor(VoicePi.class, String.class, JsonObject.class)
+					.newInstance(control, moduleName, moduleConfig);
+		} catch (Throwable e) {
+			log.warn("Could not instantiate module " + moduleName, e);
+			return null;
+		}
+	}
+
 	public SpeechRecognizer loadSTTFromConfig() {
 		try {
 			return (SpeechRecognizer) Class.forName(sttConfig.getAsJsonPrimitive("class-name").getAsString())
@@ -0,0 +1,191 @@
+package de.piegames.voicepi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import de.piegames.voicepi.audio.ReplayAudio;
+import de.piegames.voicepi.stt.SpeechRecognizer;
+import de.piegames.voicepi.tts.MutedSpeechEngine;
+
+/**
+ * Runs recorded audio files through the whole application: capturing, voice activity detection, speech recognition and handling the recognized commands. Each
+ * file gets its own {@link VoicePi} with a {@link ReplayAudio} and muted speech output. Time is virtual, so files are processed as fast as possible (or at a
+ * given multiple of real time) and in parallel, and timeouts are measured in audio time.<br/>
+ * Usage: {@code Replay [--speed <multiple of real time>] [--threads <count>] <config file> <WAV file, directory or manifest>...}<br/>
+ * A manifest is a text file with the path of a WAV file per line, relative to the manifest. Empty lines and lines starting with {@code #} are ignored.<br/>
+ * A replay ends when the recognizer reaches the end of the file, so the configured recognizer must actually listen to the audio.
+ */
+public class Replay {
+
+	protected static final Log	log	= LogFactory.getLog(Replay.class);
+
+	protected final Path		configPath;
+	protected final float		speed;
+
+	/**
+	 * @param configPath the configuration every replay will be loaded with. Its audio and speech output will be replaced.
+	 * @param speed how fast to replay compared to real time, zero or less for as fast as possible
+	 */
+	public Replay(Path configPath, float speed) {
+		this.configPath = Objects.requireNonNull(configPath);
+		this.speed = speed;
+	}
+
+	/** Replays a single file and returns once all of it has been processed */
+	public Result replay(File file) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Configuration config = new Configuration(configPath);
+		config.loadConfig();
+		ReplayAudio audio = new ReplayAudio(config.getAudioConfig(), file, speed);
+		config.setAudio(audio);
+		VoicePi control = new VoicePi(config);
+		config.setTTS(new MutedSpeechEngine(control, null));
+		control.reload();
+
+		List<Collection<String>> commands = new ArrayList<>();
+		float lastCommand = 0;
+		try {
+			boolean drained = false;
+			while (true) {
+				Collection<String> spoken = control.commandsSpoken.poll(10, TimeUnit.MILLISECONDS);
+				if (spoken == null) {
+					if (drained)
+						break;
+					if (audio.isDrained()) {
+						// The recognizer may still be working on the end of the file. Stopping it waits for that, then only its queue is left.
+						drained = true;
+						SpeechRecognizer stt = control.getSTT();
+						if (stt.isRunning())
+							stt.stopRecognition();
+					}
+					continue;
+				}
+				lastCommand = checkTimeout(control, lastCommand, audio.getPosition());
+				control.onCommandSpoken(spoken);
+				commands.add(spoken);
+			}
+			checkTimeout(control, lastCommand, audio.getPosition());
+		} finally {
+			control.exitApplication();
+		}
+		return new Result(file, commands, audio.getPosition(), System.nanoTime() - start);
+	}
+
+	/** Calls {@link VoicePi#onTimeout()} if more audio time than the timeout passed since the last command. Returns the time of the current command. */
+	protected float checkTimeout(VoicePi control, float lastCommand, float now) {
+		int timeout = control.getSettings().getTimeout();
+		if (timeout > 0 && !control.getStateMachine().isIdle() && now - lastCommand > timeout)
+			control.onTimeout();
+		return now;
+	}
+
+	/** Replays all files using the given number of threads. Files that fail will be logged and skipped. */
+	public List<Result> replayAll(List<File> files, int threads) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<>();
+			for (File file : files)
+				futures.add(executor.submit(() -> replay(file)));
+			List<Result> results = new ArrayList<>();
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					log.error("Could not replay " + files.get(i), e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Expands directories to the WAV files in them and manifests to the files they list */
+	public static List<File> listFiles(String path) throws IOException {
+		File file = new File(path);
+		if (file.isDirectory()) {
+			File[] wavs = file.listFiles((dir, name) -> name.toLowerCase().endsWith(".wav"));
+			Arrays.sort(wavs);
+			return Arrays.asList(wavs);
+		}
+		if (file.getName().toLowerCase().endsWith(".wav"))
+			return Arrays.asList(file);
+		Path base = file.getAbsoluteFile().toPath().getParent();
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream()
+				.map(String::trim)
+				.filter(line -> !line.isEmpty() && !line.startsWith("#"))
+				.map(line -> base.resolve(line).toFile())
+				.collect(Collectors.toList());
+	}
+
+	public static void main(String... args) throws IOException, InterruptedException {
+		float speed = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i += 2) {
+			if (args[i].equals("--speed"))
+				speed = Float.parseFloat(args[i + 1]);
+			else if (args[i].equals("--threads"))
+				threads = Integer.parseInt(args[i + 1]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (args.length - i < 2) {
+			System.err.println("Usage: Replay [--speed <multiple of real time>] [--threads <count>] <config file> <WAV file, directory or manifest>...");
+			System.exit(1);
+		}
+		Replay replay = new Replay(Paths.get(args[i]), speed);
+		List<File> files = new ArrayList<>();
+		for (i++; i < args.length; i++)
+			files.addAll(listFiles(args[i]));
+
+		long start = System.nanoTime();
+		List<Result> results = replay.replayAll(files, threads);
+		float wallSeconds = (System.nanoTime() - start) / 1e9f;
+		float audioSeconds = 0;
+		for (Result result : results) {
+			log.info(result);
+			audioSeconds += result.audioSeconds;
+		}
+		log.info(String.format("Replayed %d of %d files, %.1fs of audio in %.1fs: %.2f audio seconds per second", results.size(), files.size(), audioSeconds,
+				wallSeconds, audioSeconds / wallSeconds));
+	}
+
+	/** What happened while replaying a file */
+	public static class Result {
+
+		public final File						file;
+		/** Everything the recognizer heard, in order */
+		public final List<Collection<String>>	commands;
+		public final float						audioSeconds;
+		public final long						wallNanos;
+
+		public Result(File file, List<Collection<String>> commands, float audioSeconds, long wallNanos) {
+			this.file = file;
+			this.commands = commands;
+			this.audioSeconds = audioSeconds;
+			this.wallNanos = wallNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.1fs of audio in %.1fs, commands: %s", file, audioSeconds, wallNanos / 1e9f, commands);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package de.piegames.voicepi;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.NoSuchFileException;
@@ -8,7 +9,6 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
@@ -19,6 +19,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
@@ -26,6 +27,7 @@ import com.google.gson.stream.JsonWriter;
 import de.piegames.voicepi.action.Action;
 import de.piegames.voicepi.action.Action.ActionType;
 import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.audio.SoundCache;
 import de.piegames.voicepi.module.Module;
 import de.piegames.voicepi.state.CommandSet;
 import de.piegames.voicepi.state.ContextState;
@@ -49,6 +51,12 @@ public class VoicePi implements Runnable {
 	protected SpeechRecognizer					stt;
 	protected Audio								audio;
 	protected Map<String, Module>				modules			= new HashMap<>();
+	/** The configuration each module has been created with, to find out which ones changed when reloading */
+	protected final Map<String, JsonObject>		moduleConfigs	= new HashMap<>();
+	/** The sounds each module registered while it was loaded, so that they can be registered again if the module is kept on reload */
+	protected final Map<String, Set<File>>		moduleSounds	= new HashMap<>();
+	/** The commands the recognizer has been loaded with */
+	protected Set<String>						commands;
 	protected Settings							settings		= new Settings();
 	protected final Queue<ContextState>			notifications	= new SynchronousQueue<>();
 
@@ -110,13 +118,17 @@ public class VoicePi implements Runnable {
 			onCommandSpoken(spoken);
 			log.debug("Current state: " + stateMachine.getCurrentState());
 			log.debug("Available commands: " + stateMachine.getAvailableCommands());
-		} else {
-			log.info("Timed out");
-			stt.deafenRecognition(true);
-			settings.onTimeout.execute(this, log, "onTimeout");
-			stateMachine.resetState();
-			stt.deafenRecognition(false);
-		}
+		} else
+			onTimeout();
+	}
+
+	/** Called when no command was spoken for {@link Settings#getTimeout()} seconds while not being idle */
+	public void onTimeout() {
+		log.info("Timed out");
+		stt.deafenRecognition(true);
+		settings.onTimeout.execute(this, log, "onTimeout");
+		stateMachine.resetState();
+		stt.deafenRecognition(false);
 	}
 
 	public void onCommandSpoken(String command) {
@@ -167,13 +179,18 @@ public class VoicePi implements Runnable {
 		}
 	}
 
+	/**
+	 * Loads the configuration again and applies it. Only the parts whose configuration changed get rebuilt: modules with the same configuration, the audio, the
+	 * speech recognizer and the speech engine are kept running. If only the commands changed, the recognizer gets to {@link SpeechRecognizer#updateCommands(Set)
+	 * update} its vocabulary instead of being loaded again. The settings and the state machine are always created anew.
+	 */
 	public void reload() {
 		log.info("Reloading the configuration");
 		settings.onReload.execute(this, log, "onReload");
 
 		notifications.clear();
-		commandsSpoken = new LinkedBlockingQueue<>();
-		unload();
+		// What the running components were created from
+		JsonObject oldAudioConfig = config.getAudioConfig(), oldSTTConfig = config.getSTTConfig(), oldTTSConfig = config.getTTSConfig();
 
 		// Load config
 		try {
@@ -193,6 +210,23 @@ public class VoicePi implements Runnable {
 			config.loadDefaultConfig();
 		}
 
+		// Find out which modules can stay
+		Map<String, Module> customModules = config.getModules();
+		Map<String, Module> keptModules = new HashMap<>();
+		if (customModules == null)
+			for (String name : config.getActiveModules())
+				if (modules.containsKey(name) && moduleConfigs.containsKey(name) && moduleConfigs.get(name).equals(config.findModuleConfig(name)))
+					keptModules.put(name, modules.get(name));
+		for (Map.Entry<String, Module> e : modules.entrySet())
+			if (keptModules.get(e.getKey()) != e.getValue() && (customModules == null || customModules.get(e.getKey()) != e.getValue())) {
+				log.debug("Closing module " + e.getKey());
+				e.getValue().close();
+			}
+		// Play sound actions will register their files again while loading. Kept modules won't, so register the sounds they registered when they were loaded.
+		SoundCache.SHARED.clearRegistered();
+		moduleSounds.keySet().retainAll(keptModules.keySet());
+		moduleSounds.values().forEach(sounds -> sounds.forEach(SoundCache.SHARED::register));
+
 		{ // Load Settings
 			// TODO use Optional
 			settings = config.getSettings();
@@ -203,32 +237,38 @@ public class VoicePi implements Runnable {
 			log.debug("Loaded settings: " + settings);
 		}
 
+		{ // Load modules
+			Map<String, Module> loaded = new HashMap<>();
+			moduleConfigs.clear();
+			if (customModules != null)
+				loaded.putAll(customModules);
+			else
+				for (String name : config.getActiveModules()) {
+					Module module = keptModules.get(name);
+					if (module == null) {
+						SoundCache.SHARED.startRecording();
+						try {
+							module = config.loadModuleFromConfig(this, name);
+						} finally {
+							Set<File> sounds = SoundCache.SHARED.stopRecording();
+							if (module != null)
+								moduleSounds.put(name, sounds);
+						}
+					} else
+						log.debug("Keeping module " + name);
+					if (module == null)
+						continue;
+					loaded.put(name, module);
+					moduleConfigs.put(name, config.findModuleConfig(name));
+				}
+			modules.clear();
+			modules.putAll(loaded);
+		}
+
 		// Initialize state machine
 		stateMachine = new VoiceState();
 		stateMachine.setActivationCommands(settings.activationCommands);
-
-		modules.putAll(Optional.ofNullable(config.getModules()).orElse(config.loadModulesFromConfig(this)));
-		modules.forEach((name, module) -> {
-			stateMachine.addModuleGraph(module.listCommands(stateMachine.getRoot()));
-			this.modules.put(name, module);
-		});
-
-		{// Load audio
-			audio = config.getAudio();
-			if (audio == null)
-				audio = config.loadAudioFromConfig();
-			try {
-				audio.init();
-			} catch (IOException e) {
-				log.error("Could not initialize audio", e);
-				audio = null;
-			}
-			if (audio == null) {
-				log.fatal("Cannot load audio from configuration. This is required to run VoicePi!");
-				exitApplication();
-				throw new InternalError("Could not load audio");
-			}
-		}
+		modules.values().forEach(module -> stateMachine.addModuleGraph(module.listCommands(stateMachine.getRoot())));
 
 		// Get all commands
 		Set<String> commands = stateMachine.getAllCommands();
@@ -238,42 +278,109 @@ public class VoicePi implements Runnable {
 		commands.remove(null);
 		commands.remove("");
 
-		{ // Load STT
-			// TODO use Optional
-			stt = config.getSTT();
-			if (stt == null)
-				stt = config.loadSTTFromConfig();
+		{ // Load audio
+			Audio newAudio = config.getAudio();
+			if (newAudio == null && audio != null && Objects.equals(oldAudioConfig, config.getAudioConfig()))
+				newAudio = audio;
+			if (newAudio != audio || audio == null) {
+				// The recognizer uses the audio, so it has to go first
+				unloadSTT();
+				if (audio != null)
+					try {
+						audio.close();
+					} catch (IOException e) {
+						log.fatal("Could not close all audio resources", e);
+					}
+				audio = newAudio;
+				if (audio == null)
+					audio = config.loadAudioFromConfig();
+				try {
+					if (audio != null)
+						audio.init();
+				} catch (IOException e) {
+					log.error("Could not initialize audio", e);
+					audio = null;
+				}
+				if (audio == null) {
+					log.fatal("Cannot load audio from configuration. This is required to run VoicePi!");
+					exitApplication();
+					throw new InternalError("Could not load audio");
+				}
+			} else
+				log.debug("Keeping audio");
+			// Decode all sounds now so they play without delay later on
+			SoundCache.SHARED.preload(audio.getOutputFormat());
+		}
 
-			try {
-				if (stt != null)
-					stt.load(audio, stateMachine, settings, commandsSpoken, commands);
-			} catch (RuntimeException | IOException e) {
-				log.error("Could not load the speech recognition module; switching to DeafRecognizer", e);
-				stt = null;
+		{ // Load STT
+			SpeechRecognizer customSTT = config.getSTT();
+			boolean keep = stt != null && (customSTT != null ? customSTT == stt : Objects.equals(oldSTTConfig, config.getSTTConfig()) && !(stt instanceof DeafRecognizer));
+			if (keep && !stt.rebind(stateMachine, settings))
+				keep = false;
+			if (keep && !commands.equals(this.commands)) {
+				log.debug("Updating the commands of " + stt.getClass().getSimpleName());
+				stt.stopRecognition();
+				keep = stt.updateCommands(commands);
+				if (keep)
+					stt.startRecognition();
+				else
+					unloadSTT();
 			}
+			if (keep) {
+				log.debug("Keeping " + stt.getClass().getSimpleName());
+				commandsSpoken.clear();
+			} else {
+				unloadSTT();
+				commandsSpoken = new LinkedBlockingQueue<>();
+				// TODO use Optional
+				stt = customSTT;
+				if (stt == null)
+					stt = config.loadSTTFromConfig();
+
+				try {
+					if (stt != null)
+						stt.load(audio, stateMachine, settings, commandsSpoken, commands);
+				} catch (RuntimeException | IOException e) {
+					log.error("Could not load the speech recognition module; switching to DeafRecognizer", e);
+					stt = null;
+				}
 
-			if (stt == null)
-				stt = new DeafRecognizer();
-			stt.startRecognition();
+				if (stt == null)
+					stt = new DeafRecognizer();
+				stt.startRecognition();
+			}
+			this.commands = commands;
 		}
 		{ // Load TTS
-			// TODO use Optional
-			tts = config.getTTS();
-			if (tts == null)
-				tts = config.loadTTSFromConfig(this);
-			if (tts == null) {
-				tts = new MutedSpeechEngine(this, null);
-				log.error("Could not load the speech synthesis module; switching to MutedRecognizer");
+			SpeechEngine customTTS = config.getTTS();
+			if (tts != null && (customTTS != null ? customTTS == tts : Objects.equals(oldTTSConfig, config.getTTSConfig()) && !(tts instanceof MutedSpeechEngine)))
+				log.debug("Keeping " + tts.getClass().getSimpleName());
+			else {
+				// TODO use Optional
+				tts = customTTS;
+				if (tts == null)
+					tts = config.loadTTSFromConfig(this);
+				if (tts == null) {
+					tts = new MutedSpeechEngine(this, null);
+					log.error("Could not load the speech synthesis module; switching to MutedRecognizer");
+				}
 			}
 		}
 	}
 
+	/** Stops and unloads the speech recognizer if there is one */
+	protected void unloadSTT() {
+		if (stt == null)
+			return;
+		if (stt.isRunning())
+			stt.stopRecognition();
+		stt.unload();
+		stt = null;
+	}
+
 	protected void unload() {
 		log.info("Unloading everything");
-		if (stt != null) {
-			stt.stopRecognition();
-			stt.unload();
-		}
+		unloadSTT();
 		tts = null;
 		if (audio != null)
 			try {
@@ -281,8 +388,11 @@ public class VoicePi implements Runnable {
 			} catch (IOException e) {
 				log.fatal("Could not close all audio resources", e);
 			}
+		audio = null;
 		modules.values().forEach(Module::close);
 		modules.clear();
+		moduleConfigs.clear();
+		moduleSounds.clear();
 	}
 
 	public void exitApplication() {
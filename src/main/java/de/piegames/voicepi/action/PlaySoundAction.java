@@ -2,11 +2,13 @@ package de.piegames.voicepi.action;
 
 import java.io.File;
 import java.io.IOException;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import com.google.gson.JsonObject;
 import de.piegames.voicepi.VoicePi;
+import de.piegames.voicepi.audio.Playback.Category;
+import de.piegames.voicepi.audio.SoundCache;
 
+/** Plays a sound file. The file is decoded once and then kept in the {@link SoundCache}, so that it plays instantly. */
 public class PlaySoundAction extends Action {
 
 	protected String soundfile;
@@ -14,13 +16,14 @@ public class PlaySoundAction extends Action {
 	public PlaySoundAction(JsonObject data) {
 		super(ActionType.PLAY_SOUND, data);
 		soundfile = data.getAsJsonPrimitive("soundfile").getAsString();
+		SoundCache.SHARED.register(new File(soundfile));
 	}
 
 	@Override
 	public void execute(VoicePi control) throws IOException, InterruptedException {
 		try {
 			log.debug("Playing " + soundfile);
-			control.getAudio().play(AudioSystem.getAudioInputStream(new File(soundfile)));
+			control.getAudio().play(SoundCache.SHARED.open(new File(soundfile), control.getAudio().getOutputFormat()), Category.ALERT);
 		} catch (UnsupportedAudioFileException e) {
 			log.warn("Could not play sound " + soundfile, e);
 		}
@@ -4,7 +4,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Optional;
-import java.util.function.Consumer;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -13,9 +18,7 @@ import org.apache.commons.logging.LogFactory;
 import com.google.api.client.util.IOUtils;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import de.piegames.voicepi.audio.VolumeSpeechDetector.State;
-import javafx.beans.property.IntegerProperty;
-import javafx.beans.property.SimpleIntegerProperty;
+import de.piegames.voicepi.audio.Playback.Category;
 
 public abstract class Audio {
 
@@ -24,8 +27,28 @@ public abstract class Audio {
 
 	protected final Log				log					= LogFactory.getLog(getClass());
 	protected float					commandBufferSize, minCommandLength, maxCommandPauseTime, timeoutTime, calibrationTime;
-	protected long					lastCalibrationTime	= 0;
-	protected float					calibratedAverage	= 1;
+	/** How much audio before the start and after the end of a detected command will be included in its recording, in seconds */
+	protected float					preRoll, postRoll;
+	/** Implementations mixing their output lower the volume of speech to {@code duckGain} while an alert plays, fading over {@code duckTime} seconds */
+	protected float					duckGain, duckTime;
+	/** Capture buffers of at least this many bytes are allocated outside of the Java heap */
+	protected int					directBufferThreshold;
+	/** Tracks the volume of the background noise. Implementations that capture continuously feed it with all captured audio. */
+	protected final NoiseFloorTracker	noiseFloor;
+	/** Creates noise floor trackers with the configured settings */
+	protected Supplier<NoiseFloorTracker>	noiseFloorFactory;
+	/** Creates the detectors that decide which parts of the recorded audio contain speech when listening for a command */
+	protected Supplier<VoiceActivityDetector>	vadFactory;
+	/**
+	 * Detectors that are not used by any {@link #recordCommand(CommandListener)} at the moment. Every call takes its own one, so concurrent calls don't share
+	 * any state, and gives it back afterwards so the next command can use what it learned.
+	 */
+	protected final Queue<VoiceActivityDetector>	idleDetectors	= new ConcurrentLinkedQueue<>();
+	/**
+	 * Implementations that record continuously write all captured audio (in {@link #getListeningFormat()}) in here. Every listener gets its own reader on it,
+	 * so only one device line needs to be open. It is {@code null} for implementations that don't capture this way.
+	 */
+	protected volatile CircularByteBuffer	captureBuffer;
 
 	public Audio(JsonObject config) {
 		commandBufferSize = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("command-buffer-size")).map(JsonPrimitive::getAsFloat).orElse(10f);
@@ -33,11 +56,44 @@ public abstract class Audio {
 		maxCommandPauseTime = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("max-command-pause-time")).map(JsonPrimitive::getAsFloat).orElse(0.8f);
 		timeoutTime = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("command-timeout-time")).map(JsonPrimitive::getAsFloat).orElse(10f);
 		calibrationTime = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("calibration-time")).map(JsonPrimitive::getAsFloat).orElse(1f);
+		preRoll = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("pre-roll")).map(JsonPrimitive::getAsFloat).orElse(0.5f);
+		postRoll = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("post-roll")).map(JsonPrimitive::getAsFloat).orElse(0.2f);
+		duckGain = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("duck-gain")).map(JsonPrimitive::getAsFloat).orElse(0.3f);
+		duckTime = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("duck-time")).map(JsonPrimitive::getAsFloat).orElse(0.1f);
+		directBufferThreshold = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("direct-buffer-threshold")).map(JsonPrimitive::getAsInt).orElse(1 << 20);
+		// Conversions are static, so this applies to the whole application
+		Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("resampler-taps")).map(JsonPrimitive::getAsInt).ifPresent(Resampler::setDefaultTaps);
 		if (commandBufferSize < 1) {
 			log.warn("Minimum command buffer size is 1s");
 			commandBufferSize = 1;
 		}
-		// TODO don't calibrate before each command
+		JsonObject vadConfig = Optional.ofNullable(config).map(c -> c.getAsJsonObject("vad")).orElse(null);
+		// Load the first detector right away so configuration errors show up only once
+		VoiceActivityDetector vad = Optional.ofNullable(vadConfig).map(this::loadVoiceActivityDetector).orElse(null);
+		if (vad != null) {
+			vadFactory = () -> Optional.ofNullable(loadVoiceActivityDetector(vadConfig)).orElseGet(() -> new EnergyActivityDetector(null));
+		} else {
+			vadFactory = () -> new EnergyActivityDetector(null);
+			vad = vadFactory.get();
+		}
+		idleDetectors.add(vad);
+		float percentile = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("noise-floor-percentile")).map(JsonPrimitive::getAsFloat).orElse(0.5f);
+		float adaptation = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("noise-floor-adaptation")).map(JsonPrimitive::getAsFloat).orElse(5f);
+		float gate = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("noise-floor-gate")).map(JsonPrimitive::getAsFloat).orElse(10f);
+		noiseFloorFactory = () -> new NoiseFloorTracker(calibrationTime, percentile, adaptation, gate);
+		noiseFloor = noiseFloorFactory.get();
+	}
+
+	/** Instantiates the {@link VoiceActivityDetector} specified in the given configuration. Returns {@code null} if that fails. */
+	protected VoiceActivityDetector loadVoiceActivityDetector(JsonObject vadConfig) {
+		try {
+			return (VoiceActivityDetector) Class.forName(vadConfig.getAsJsonPrimitive("class-name").getAsString())
+					.getConstructor(JsonObject.class)
+					.newInstance(vadConfig);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.warn("Could not instantiate voice activity detector as specified in the config file, using the default one", e);
+			return null;
+		}
 	}
 
 	/**
@@ -60,79 +116,116 @@ public abstract class Audio {
 	public abstract CircularBufferInputStream normalListening2() throws IOException;
 
 	/**
-	 * This will wait until a command gets spoken, record all audio until the command is over, convert it to the target format and return.
+	 * Like {@link #normalListening2()}, but the returned stream will start {@code lookback} seconds in the past, as far as the audio is still buffered.
+	 * Implementations that don't keep a history of the recorded audio will simply start at the current point in time.
+	 *
+	 * @throws IOException if something goes wrong
+	 */
+	public CircularBufferInputStream normalListening2(float lookback) throws IOException {
+		return normalListening2();
+	}
+
+	/**
+	 * This will wait until a command gets spoken, record all audio until the command is over, convert it to the target format and return. This copies the
+	 * recorded data, use {@link #recordCommand()} to avoid that.
 	 *
 	 * @param targetFormat the target audio format for the resulting AudioInputStream.
 	 * @return An AudioInputStream backed by a byte buffer containing the audio data of the spoken command in the specified audio format or {@code null} if no
 	 *         command was spoken.
 	 * @throws IOException if something goes wrong
 	 */
-	@SuppressWarnings("resource")
 	public AudioInputStream listenCommand(AudioFormat targetFormat) throws IOException {
-		IntegerProperty startIndex = new SimpleIntegerProperty();
-		IntegerProperty endIndex = new SimpleIntegerProperty();
-
-		CircularBufferInputStream stream = normalListening2();
-		CircularByteBuffer buffer = stream.getBuffer();
-		RMSInputStream wait = new RMSInputStream(stream, getListeningFormat(), null);
-		calibrate(wait);
-		VolumeSpeechDetector volume = new VolumeSpeechDetector(calibratedAverage, (int) (minCommandLength * 1000f), (int) (timeoutTime * 1000f), (int) (maxCommandPauseTime * 1000f), (int) ((commandBufferSize - 0.5f) * 1000f));
-		wait.callback.set(volume);
-
-		volume.state.addListener((observable, oldVal, newVal) -> {
-			if (oldVal == State.QUIET && (newVal == State.SPEAKING || newVal == State.STARTED_SPEAKING)) {
-				startIndex.set(buffer.getIndex());
-			}
-			if (newVal == State.TIMEOUT || newVal == State.TOO_SHORT || (newVal == State.QUIET && oldVal != State.QUIET)) {
-				try {
-					System.out.println("Closing stream because of " + newVal);
-					endIndex.set(buffer.getIndex());
-					wait.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		});
-		while (wait.read(new byte[1024]) != -1)
-			;
-		System.out.println(volume.getState() + " " + volume.aborted());
-		if (volume.aborted())
-			return null;
-		int start = Math.floorMod(startIndex.get() - secondsToBytes(getListeningFormat(), 0.5f), buffer.capacity());
-		int len = Math.floorMod(endIndex.get() - start, buffer.capacity());
-		byte[] data = new byte[len];
-		buffer.getRaw(start,
-				data, 0, len);
+		byte[] data;
+		try (AudioSegment command = recordCommand()) {
+			if (command == null)
+				return null;
+			data = command.toByteArray();
+		}
 		AudioInputStream ret = new AudioInputStream(new ByteArrayInputStream(data), getListeningFormat(), AudioSystem.NOT_SPECIFIED);
 		if (targetFormat != null)
 			ret = formatStream(ret, targetFormat);
 		return ret;
 	}
 
-	/** This will listen for n milliseconds and calculate the average volume from it. This will be used as threshold later on */
-	protected void calibrate(RMSInputStream rmsIn) throws IOException {
-		if (System.currentTimeMillis() - lastCalibrationTime < (commandBufferSize * 1000f))
-			return;
-		class AverageConsumer implements Consumer<Float> {
+	/**
+	 * This will wait until a command gets spoken, record all audio until the command is over and return it. The returned segment is a view directly on the
+	 * recording buffer in {@link #getListeningFormat()}, no data will be copied. It has to be closed as soon as possible since no new audio can be recorded
+	 * once the buffer reaches the pinned data. The segment starts {@link #preRoll} seconds before the first chunk containing speech and ends
+	 * {@link #postRoll} seconds after the last one. If the command is longer than the buffer, its beginning will be missing.
+	 *
+	 * @return the audio data of the spoken command or {@code null} if no command was spoken.
+	 * @throws IOException if something goes wrong
+	 */
+	public AudioSegment recordCommand() throws IOException {
+		return recordCommand(null);
+	}
 
-			float	sum		= 0f;
-			int		count	= 0;
+	/**
+	 * Like {@link #recordCommand()}, but all audio of the command will additionally be passed to the {@code listener} as soon as it has been recorded, while
+	 * the command is still being spoken. The streamed audio ends when the command has been detected to be over, so it may be a little longer than the returned
+	 * segment.
+	 *
+	 * @param listener will receive the audio while it is being recorded. May be {@code null}.
+	 * @return the audio data of the spoken command or {@code null} if no command was spoken.
+	 * @throws IOException if something goes wrong
+	 */
+	public AudioSegment recordCommand(CommandListener listener) throws IOException {
+		AudioFormat format = getListeningFormat();
+		SpeechDetector volume;
+		CircularByteBuffer buffer;
+		long streamEnd, streamed = 0;
+		boolean streaming = false;
+		VoiceActivityDetector vad = Optional.ofNullable(idleDetectors.poll()).orElseGet(vadFactory);
+		try (CircularBufferInputStream stream = normalListening2()) {
+			buffer = stream.getBuffer();
+			CircularByteBuffer.Reader reader = stream.getReader();
+			// Implementations that don't capture continuously don't track the noise themselves, so do it while listening. Every stream is a recording of its
+			// own then, and concurrent calls must not write to the same tracker, so each call gets a new one.
+			boolean trackNoise = captureBuffer == null;
+			NoiseFloorTracker noiseFloor = this.noiseFloor;
+			if (trackNoise) {
+				noiseFloor = noiseFloorFactory.get();
+				noiseFloor.setFormat(format);
+			}
+			volume = new SpeechDetector(vad, noiseFloor, format, minCommandLength, timeoutTime, maxCommandPauseTime, Math.max(minCommandLength, commandBufferSize - preRoll - postRoll));
 
-			@Override
-			public void accept(Float t) {
-				sum += t;
-				count++;
+			// Always pass whole frames to the detector
+			int frameSize = Math.max(1, format.getFrameSize());
+			byte[] scratch = new byte[1024 / frameSize * frameSize];
+			int read;
+			while (!volume.isDone() && (read = stream.read(scratch)) != -1) {
+				if (trackNoise)
+					noiseFloor.process(scratch, 0, read);
+				// Only right after starting, the noise floor needs some audio to settle
+				if (noiseFloor.isCalibrated())
+					// The reader's position is exact even if it has been overrun, since the data of one read is always contiguous
+					volume.process(scratch, 0, read, reader.getPosition() - read);
+				if (listener != null && volume.getSpeechStart() >= 0 && !volume.aborted()) {
+					if (!streaming) {
+						streaming = true;
+						listener.commandStarted(format);
+						streamed = volume.getSpeechStart() - secondsToBytes(format, preRoll);
+					}
+					long position = reader.getPosition();
+					if (position > streamed)
+						try (AudioSegment piece = AudioSegment.of(buffer, streamed, position, format)) {
+							listener.commandAudio(piece);
+						}
+					streamed = position;
+				}
 			}
+			streamEnd = reader.getPosition();
+		} finally {
+			idleDetectors.add(vad);
 		}
-		AverageConsumer c = new AverageConsumer();
-		rmsIn.callback.set(c);
-		long startTime = System.currentTimeMillis();
-		System.out.println("Calibrating");
-		while (System.currentTimeMillis() - startTime < calibrationTime * 1000)
-			rmsIn.read(new byte[1024]);
-		calibratedAverage = c.sum / c.count;
-		System.out.println("Calibrated " + calibratedAverage);
-		lastCalibrationTime = (long) (startTime + calibrationTime * 1000);
+		if (streaming)
+			listener.commandFinished(volume.aborted());
+		System.out.println(volume.getState() + " " + volume.aborted());
+		if (volume.aborted() || volume.getSpeechStart() < 0)
+			return null;
+		long from = volume.getSpeechStart() - secondsToBytes(format, preRoll);
+		long to = Math.min(streamEnd, volume.getSpeechEnd() + secondsToBytes(format, postRoll));
+		return AudioSegment.of(buffer, from, to, format);
 	}
 
 	/**
@@ -143,12 +236,67 @@ public abstract class Audio {
 	 */
 	public abstract void play(AudioInputStream stream) throws IOException;
 
+	/**
+	 * Like {@link #play(AudioInputStream)}, but tells implementations that mix their output what kind of audio this is so they can duck speech under alerts.
+	 * The default implementation ignores the category.
+	 */
+	public void play(AudioInputStream stream, Category category) throws IOException {
+		play(stream);
+	}
+
+	/**
+	 * Starts playing the stream in the background and returns immediately. Use the returned handle to wait for it or to stop it. Implementations without a
+	 * mixer play each stream in its own thread using {@link #play(AudioInputStream, Category)} and ignore the gain.
+	 *
+	 * @param gain the volume of the stream, 1 being the original volume
+	 */
+	public Playback submit(AudioInputStream stream, Category category, float gain) {
+		FutureTask<Void> task = new FutureTask<>(() -> {
+			play(stream, category);
+			return null;
+		});
+		Thread thread = new Thread(task, "Playback thread");
+		thread.setDaemon(true);
+		thread.start();
+		return new Playback() {
+
+			@Override
+			public void await() throws IOException {
+				try {
+					task.get();
+				} catch (InterruptedException | CancellationException e) {
+					stop();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+
+			@Override
+			public void stop() {
+				task.cancel(true);
+			}
+
+			@Override
+			public boolean isDone() {
+				return task.isDone();
+			}
+
+			@Override
+			public void setGain(float gain) {
+			}
+		};
+	}
+
 	/** Called to initialize all audio stuff required to operate */
 	public void init() throws IOException {
 	}
 
-	/** Called to free all resources claimed by {@link #init()} */
+	/** Called to free all resources claimed by {@link #init()}. This releases the {@link #captureBuffer}, so implementations must stop writing to it first. */
 	public void close() throws IOException {
+		if (captureBuffer != null)
+			captureBuffer.release();
 	}
 
 	/**
@@ -158,23 +306,72 @@ public abstract class Audio {
 	 */
 	public abstract AudioFormat getListeningFormat();
 
+	/**
+	 * The format played audio gets converted to before it is output. Streams already in this format can be played without any conversion, which is why
+	 * {@link SoundCache} stores sounds in it. Returns {@code null} if each stream is played in its own format.
+	 */
+	public AudioFormat getOutputFormat() {
+		return null;
+	}
+
+	/** Returns the statistics of the buffer holding the captured audio, or {@code null} if the implementation has none or is not capturing */
+	public BufferMetrics getCaptureMetrics() {
+		return captureBuffer;
+	}
+
+	/**
+	 * Creates a new blocking stream on {@link #captureBuffer} starting {@code lookback} seconds in the past. This is cheap and does not copy any data.
+	 *
+	 * @throws IOException if the implementation failed to start capturing
+	 */
+	protected CircularBufferInputStream newCaptureStream(float lookback) throws IOException {
+		CircularByteBuffer buffer = captureBuffer;
+		if (buffer == null)
+			throw new IOException("Audio is not capturing");
+		return new CircularBufferInputStream(buffer.newReader(secondsToBytes(getListeningFormat(), lookback)), true);
+	}
+
+	/**
+	 * Returns the current estimate of the background noise's volume (RMS). Voice activity detectors use it as reference to tell speech from silence. It follows
+	 * the noise in real time while audio is being captured. Implementations that don't capture continuously track the noise separately for each
+	 * {@link #recordCommand(CommandListener) recorded command} instead, this doesn't change for them.
+	 */
+	public float getNoiseFloor() {
+		return noiseFloor.getNoiseFloor();
+	}
+
 	protected int getCommandBufferSize() {
 		return secondsToBytes(getListeningFormat(), commandBufferSize);
 	}
 
-	/** Calculates the amount of bytes needed to store n seconds of audio data in the given audio format */
+	/**
+	 * Creates a buffer of {@link #getCommandBufferSize()} bytes for the captured audio. Large ones are {@link DirectCircularByteBuffer direct}, so that a long
+	 * history doesn't burden the garbage collector.
+	 */
+	protected CircularByteBuffer newCommandBuffer() {
+		int size = getCommandBufferSize();
+		return size >= directBufferThreshold ? new DirectCircularByteBuffer(size) : new CircularByteBuffer(size);
+	}
+
+	/** Calculates the amount of bytes needed to store n seconds of audio data in the given audio format. The result will always contain whole frames. */
 	public static int secondsToBytes(AudioFormat format, float seconds) {
-		return (int) (seconds * format.getFrameRate() * format.getFrameSize());
+		return (int) (seconds * format.getFrameRate()) * format.getFrameSize();
 	}
 
 	public static AudioInputStream formatStream(AudioInputStream in) {
 		return formatStream(in, FORMAT);
 	}
 
+	/**
+	 * Converts the stream to the target format. Conversions between 16 bit and float PCM with any sample rates and channel counts are done by the
+	 * {@link Resampler} in a single pass, everything else by {@link AudioSystem}.
+	 */
 	public static AudioInputStream formatStream(AudioInputStream in, AudioFormat target) {
-		if (!in.getFormat().equals(target))
-			in = AudioSystem.getAudioInputStream(target, in);
-		return in;
+		if (in.getFormat().matches(target))
+			return in;
+		if (Resampler.isSupported(in.getFormat(), target))
+			return Resampler.convert(in, target);
+		return AudioSystem.getAudioInputStream(target, in);
 	}
 
 	public static byte[] readAllBytes(AudioInputStream in) throws IOException {
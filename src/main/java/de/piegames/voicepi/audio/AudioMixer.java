@@ -0,0 +1,288 @@
+package de.piegames.voicepi.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import de.piegames.voicepi.audio.Playback.Category;
+
+/**
+ * Mixes any number of audio streams into one output, so only one output line is needed. Each submitted stream gets converted to the mixer's format by a
+ * background thread and queued in its own lock-free buffer. The output calls {@link #mix(float[], int)} whenever it needs more audio, which never blocks and
+ * does not allocate once the block size is known, so it is safe to be called from a realtime thread.<br/>
+ * Every source has its own gain. While an {@link Category#ALERT alert} is playing, all {@link Category#SPEECH speech} is ducked. The sum is soft clipped
+ * instead of distorting when it gets too loud.
+ */
+public class AudioMixer implements AutoCloseable {
+
+	/** How many streams may be played at the same time. Further streams wait until a slot is free. */
+	public static final int						MAX_SOURCES		= 16;
+	/** Samples above this level will be compressed smoothly so that the output never exceeds 1 */
+	protected static final float				CLIP_THRESHOLD	= 0.8f;
+
+	protected final Log							log				= LogFactory.getLog(getClass());
+	protected final AudioFormat					format;
+	protected final int							channels;
+	protected final float						duckGain, duckRate;
+	protected final AtomicReferenceArray<Source>	sources			= new AtomicReferenceArray<>(MAX_SOURCES);
+	protected final ExecutorService				feeders;
+	protected volatile boolean					closed;
+
+	/* Only used by the thread calling mix() */
+	protected float								duck			= 1;
+	/** Only written by the mixing thread */
+	protected volatile long						underruns;
+	protected byte[]							scratch			= new byte[0];
+	protected FloatBuffer						scratchFloats	= FloatBuffer.allocate(0);
+
+	/**
+	 * @param sampleRate the sample rate of the output
+	 * @param channels the number of channels of the output. Samples will be interleaved.
+	 * @param duckGain the gain applied to speech while an alert is playing
+	 * @param duckTime the time in seconds to fade between ducked and normal volume
+	 */
+	public AudioMixer(float sampleRate, int channels, float duckGain, float duckTime) {
+		this.format = mixingFormat(sampleRate, channels);
+		this.channels = channels;
+		this.duckGain = duckGain;
+		this.duckRate = 1 / Math.max(1, duckTime * sampleRate);
+		feeders = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "AudioMixer feeder thread");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts playing the stream and returns immediately. The stream will be read and converted in a background thread and closed once it has been played.
+	 *
+	 * @param gain the initial volume of the stream, 1 being the original volume
+	 */
+	public Playback play(AudioInputStream stream, Category category, float gain) {
+		Source source = new Source(Objects.requireNonNull(stream), Objects.requireNonNull(category), gain, Math.max(Audio.secondsToBytes(format, 0.25f), 4096));
+		if (closed) {
+			source.done = true;
+			return source;
+		}
+		feeders.execute(source::feed);
+		return source;
+	}
+
+	/**
+	 * Mixes the next {@code frames} frames of all playing sources into {@code out}. If nothing is playing, silence will be written.
+	 *
+	 * @return {@code true} if any source is playing
+	 */
+	public boolean mix(float[] out, int frames) {
+		int samples = frames * channels;
+		Arrays.fill(out, 0, samples, 0f);
+		if (scratch.length < samples * 4) {
+			// Only happens when the block size grows
+			scratch = new byte[samples * 4];
+			scratchFloats = ByteBuffer.wrap(scratch).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+
+		boolean alert = false, active = false;
+		for (int j = 0; j < MAX_SOURCES; j++) {
+			Source source = sources.get(j);
+			if (source != null && source.category == Category.ALERT && source.buffer.available() > 0)
+				alert = true;
+		}
+		// Fade linearly towards the target over the whole block
+		float duckStart = duck, duckTarget = alert ? duckGain : 1;
+		float duckEnd = duckTarget > duckStart ? Math.min(duckTarget, duckStart + duckRate * frames) : Math.max(duckTarget, duckStart - duckRate * frames);
+		duck = duckEnd;
+
+		for (int j = 0; j < MAX_SOURCES; j++) {
+			Source source = sources.get(j);
+			if (source == null)
+				continue;
+			int available = source.buffer.available();
+			int read = source.buffer.get(scratch, 0, Math.min(samples * 4, available - available % format.getFrameSize()));
+			int readFrames = read / format.getFrameSize();
+			// A source that has started playing but whose feeder can't keep up leaves a gap
+			if (readFrames > 0)
+				source.started = true;
+			if (readFrames < frames && source.started && !source.fed && !source.stopped)
+				underruns++;
+			float gain = source.gain;
+			if (source.category == Category.SPEECH && (duckStart != 1 || duckEnd != 1)) {
+				for (int f = 0; f < readFrames; f++) {
+					float g = gain * (duckStart + (duckEnd - duckStart) * f / frames);
+					for (int c = 0; c < channels; c++)
+						out[f * channels + c] += scratchFloats.get(f * channels + c) * g;
+				}
+			} else {
+				for (int i = 0; i < readFrames * channels; i++)
+					out[i] += scratchFloats.get(i) * gain;
+			}
+			active = true;
+			if (source.stopped || (source.fed && source.buffer.available() < format.getFrameSize())) {
+				source.done = true;
+				sources.compareAndSet(j, source, null);
+			}
+		}
+
+		for (int i = 0; i < samples; i++)
+			out[i] = softClip(out[i]);
+		return active;
+	}
+
+	/** Returns {@code true} if any source is currently playing or waiting to be played */
+	public boolean isActive() {
+		for (int j = 0; j < MAX_SOURCES; j++)
+			if (sources.get(j) != null)
+				return true;
+		return false;
+	}
+
+	/** How often a playing stream did not deliver its data in time, so that the output has a gap */
+	public long getUnderruns() {
+		return underruns;
+	}
+
+	/** The format of the mixed audio: float samples with the configured sample rate and channels */
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/** The format a mixer with these parameters works in. Streams already in this format don't need to be converted. */
+	public static AudioFormat mixingFormat(float sampleRate, int channels) {
+		return new AudioFormat(Encoding.PCM_FLOAT, sampleRate, 32, channels, 4 * channels, sampleRate, false);
+	}
+
+	/** Stops all sources */
+	@Override
+	public void close() {
+		closed = true;
+		feeders.shutdownNow();
+		for (int j = 0; j < MAX_SOURCES; j++) {
+			Source source = sources.getAndSet(j, null);
+			if (source != null)
+				source.done = true;
+		}
+	}
+
+	/** Leaves samples below {@link #CLIP_THRESHOLD} untouched and compresses everything above so that it approaches but never exceeds 1 */
+	protected static float softClip(float sample) {
+		float abs = Math.abs(sample);
+		if (abs <= CLIP_THRESHOLD)
+			return sample;
+		float range = 1 - CLIP_THRESHOLD;
+		return Math.copySign(CLIP_THRESHOLD + range * (float) Math.tanh((abs - CLIP_THRESHOLD) / range), sample);
+	}
+
+	/** Converts the stream to the mixer's format. Java can't do all conversions at once, so fall back to doing them one by one. */
+	protected AudioInputStream convert(AudioInputStream stream) {
+		try {
+			return Audio.formatStream(stream, format);
+		} catch (IllegalArgumentException e) {
+			AudioFormat source = stream.getFormat();
+			stream = Audio.formatStream(stream, new AudioFormat(Encoding.PCM_FLOAT, source.getSampleRate(), 32, source.getChannels(), 4 * source.getChannels(), source.getSampleRate(), false));
+			stream = Audio.formatStream(stream, new AudioFormat(Encoding.PCM_FLOAT, format.getSampleRate(), 32, source.getChannels(), 4 * source.getChannels(), format.getSampleRate(), false));
+			return Audio.formatStream(stream, format);
+		}
+	}
+
+	/** One stream being played. Its data is put into the buffer by a feeder thread and taken out by the thread mixing. */
+	protected class Source implements Playback {
+
+		protected final AudioInputStream	stream;
+		protected final Category			category;
+		protected final CircularByteBuffer	buffer;
+		protected volatile float			gain;
+		/** Set when the feeder has put all data into the buffer, when the source should stop and when it has been removed from the mixer */
+		protected volatile boolean			fed, stopped, done;
+		/** Only used by the mixing thread */
+		protected boolean					started;
+		protected volatile IOException		error;
+
+		protected Source(AudioInputStream stream, Category category, float gain, int size) {
+			this.stream = stream;
+			this.category = category;
+			this.gain = gain;
+			buffer = new CircularByteBuffer(size);
+		}
+
+		/** Runs in a feeder thread */
+		protected void feed() {
+			int slot = -1;
+			try (AudioInputStream in = convert(stream)) {
+				while (slot < 0) {
+					for (int j = 0; j < MAX_SOURCES && slot < 0; j++)
+						if (sources.compareAndSet(j, null, this))
+							slot = j;
+					if (slot < 0 && !waitForMixer())
+						return;
+				}
+				byte[] data = new byte[4096];
+				int read;
+				while (!stopped && (read = in.read(data)) != -1) {
+					for (int off = 0; off < read;) {
+						int put = buffer.put(data, off, read - off);
+						off += put;
+						if (put == 0 && !waitForMixer())
+							return;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				log.warn("Could not play audio", e);
+				error = e instanceof IOException ? (IOException) e : new IOException(e);
+				stopped = true;
+			} finally {
+				fed = true;
+				// Sources that never made it into the mixer won't be removed by it
+				if (closed || slot < 0)
+					done = true;
+			}
+		}
+
+		/** Waits a few milliseconds for the mixer to consume some data. Returns {@code false} if the source should not be played anymore. */
+		protected boolean waitForMixer() {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+			if (Thread.interrupted())
+				stopped = true;
+			return !stopped && !closed;
+		}
+
+		@Override
+		public void await() throws IOException {
+			while (!done) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+				if (Thread.interrupted()) {
+					stop();
+					break;
+				}
+			}
+			if (error != null)
+				throw error;
+		}
+
+		@Override
+		public void stop() {
+			stopped = true;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public void setGain(float gain) {
+			this.gain = gain;
+		}
+	}
+}
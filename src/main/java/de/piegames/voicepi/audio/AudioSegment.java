@@ -0,0 +1,102 @@
+package de.piegames.voicepi.audio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Objects;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * A piece of recorded audio, like a spoken command. It usually is a view directly on the data of a {@link CircularByteBuffer} which is pinned until this
+ * segment gets closed, so no data will be copied. Segments should be closed as soon as possible, otherwise the recording will stall.
+ */
+public class AudioSegment implements Closeable {
+
+	protected final AudioFormat				format;
+	protected final ByteBuffer				data;
+	protected final CircularByteBuffer.Pin	pin;
+
+	/** Wraps some audio data that is not backed by any {@link CircularByteBuffer} */
+	public AudioSegment(ByteBuffer data, AudioFormat format) {
+		this(data, format, null);
+	}
+
+	protected AudioSegment(ByteBuffer data, AudioFormat format, CircularByteBuffer.Pin pin) {
+		this.format = Objects.requireNonNull(format);
+		this.data = data.asReadOnlyBuffer().order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		this.pin = pin;
+	}
+
+	/**
+	 * Creates a segment of all data between the two given positions of the buffer and pins it. If the beginning has already been overwritten, the segment will
+	 * start at the oldest data still available.
+	 */
+	public static AudioSegment of(CircularByteBuffer buffer, long from, long to, AudioFormat format) {
+		from = Math.max(Math.max(0, from), to - buffer.capacity());
+		CircularByteBuffer.Pin pin = buffer.pin(from);
+		long lost = pin.getPosition() - from;
+		if (lost > 0) {
+			// Stay frame aligned
+			int frameSize = Math.max(1, format.getFrameSize());
+			from += (lost + frameSize - 1) / frameSize * frameSize;
+		}
+		int length = (int) Math.max(0, to - from);
+		return new AudioSegment(buffer.slice(from, length), format, pin);
+	}
+
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/** The length of this segment in bytes */
+	public int length() {
+		return data.remaining();
+	}
+
+	/** The length of this segment in frames */
+	public long getFrameLength() {
+		return length() / Math.max(1, format.getFrameSize());
+	}
+
+	/** Returns a read-only view on the data of this segment, in the byte order of its format. */
+	public ByteBuffer asByteBuffer() {
+		return data.duplicate().order(data.order());
+	}
+
+	/**
+	 * Returns a read-only view on the samples of this segment, in the byte order of its format.
+	 *
+	 * @throws IllegalStateException if the samples are not 16 bit wide
+	 */
+	public ShortBuffer asShortBuffer() {
+		if (format.getSampleSizeInBits() != 16)
+			throw new IllegalStateException("Samples are " + format.getSampleSizeInBits() + " bits wide, not 16");
+		return asByteBuffer().asShortBuffer();
+	}
+
+	/** Returns a stream reading this segment's data without copying it. */
+	public AudioInputStream getStream() {
+		return new AudioInputStream(new ByteBufferInputStream(asByteBuffer()), format, getFrameLength());
+	}
+
+	/** Returns a stream reading this segment's data converted to the given format. */
+	public AudioInputStream getStream(AudioFormat targetFormat) {
+		return Audio.formatStream(getStream(), targetFormat);
+	}
+
+	/** Copies the data of this segment into a new array */
+	public byte[] toByteArray() {
+		byte[] ret = new byte[length()];
+		asByteBuffer().get(ret);
+		return ret;
+	}
+
+	/** Releases the data. Reading from this segment afterwards will give undefined results */
+	@Override
+	public void close() {
+		if (pin != null)
+			pin.close();
+	}
+}
@@ -0,0 +1,29 @@
+package de.piegames.voicepi.audio;
+
+/**
+ * Statistics about how an audio buffer has been used since its creation. They show whether audio got lost and help to choose the buffer sizes: if data got
+ * dropped or overrun, the buffer is too small or its consumers are too slow. The high-water mark tells how much of it actually is needed.
+ */
+public interface BufferMetrics {
+
+	/** The size of the buffer in bytes */
+	public int getCapacity();
+
+	/** The total amount of bytes that have been written */
+	public long getBytesWritten();
+
+	/** New bytes that never made it into the buffer, because they would have overwritten data a reader or a pin still needed or did not fit at all */
+	public long getBytesDropped();
+
+	/** Bytes that got overwritten before a reader could read them */
+	public long getBytesOverrun();
+
+	/** The most bytes any reader has been behind the producer */
+	public int getHighWaterMark();
+
+	/** A short summary for logging */
+	public default String describe() {
+		return getBytesWritten() + " bytes written, " + getBytesDropped() + " dropped, " + getBytesOverrun() + " overrun, high-water mark " + getHighWaterMark()
+				+ " of " + getCapacity() + " bytes";
+	}
+}
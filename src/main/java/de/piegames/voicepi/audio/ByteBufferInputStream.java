@@ -0,0 +1,42 @@
+package de.piegames.voicepi.audio;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Reads from a buffer, moving its position. Give every stream its own duplicate of a shared buffer. */
+public class ByteBufferInputStream extends InputStream {
+
+	protected final ByteBuffer data;
+
+	public ByteBufferInputStream(ByteBuffer data) {
+		this.data = data;
+	}
+
+	@Override
+	public int read() {
+		return data.hasRemaining() ? data.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!data.hasRemaining())
+			return -1;
+		len = Math.min(len, data.remaining());
+		data.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skip = (int) Math.max(0, Math.min(n, data.remaining()));
+		data.position(data.position() + skip);
+		return skip;
+	}
+
+	@Override
+	public int available() {
+		return data.remaining();
+	}
+}
@@ -2,44 +2,96 @@ package de.piegames.voicepi.audio;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * An {@link InputStream} reading from a {@link CircularByteBuffer} using one of its {@link CircularByteBuffer.Reader readers}. A non-blocking stream will return
+ * 0 if no data is available, a blocking one will sleep until the producer signals new data or the {@link #setTimeout(long, TimeUnit) timeout} passes, in
+ * which case it returns 0 too. Both return EOF if the stream or the underlying buffer has been closed and all data has been read.
+ */
 public class CircularBufferInputStream extends InputStream {
 
-	protected CircularByteBuffer	buffer;
+	protected CircularByteBuffer		buffer;
+	protected CircularByteBuffer.Reader	reader;
+	protected final boolean				blocking;
+	protected long						timeoutNanos	= Long.MAX_VALUE;
 
+	/** Reads the buffer using its built-in reader without blocking */
 	public CircularBufferInputStream(CircularByteBuffer buffer) {
-		this.buffer = Objects.requireNonNull(buffer);
+		this(buffer.reader, false);
+	}
+
+	public CircularBufferInputStream(CircularByteBuffer.Reader reader, boolean blocking) {
+		this.reader = Objects.requireNonNull(reader);
+		this.buffer = reader.getBuffer();
+		this.blocking = blocking;
 	}
 
 	@Override
 	public int read() throws IOException {
 		if (buffer == null)
 			return -1;
-		return buffer.get();
+		return reader.get();
 	}
 
 	@Override
 	public int read(byte b[], int off, int len) throws IOException {
+		CircularByteBuffer buffer = this.buffer;
+		CircularByteBuffer.Reader reader = this.reader;
 		if (buffer == null)
 			return -1;
-		return buffer.get(b, off, len);
+		int read = reader.get(b, off, len);
+		long start = System.nanoTime();
+		while (read == 0 && len > 0) {
+			if (buffer.isClosed() && reader.available() == 0)
+				return -1;
+			if (!blocking)
+				break;
+			long remaining = timeoutNanos - (System.nanoTime() - start);
+			if (remaining <= 0)
+				break;
+			buffer.awaitData(reader.getPosition(), remaining, TimeUnit.NANOSECONDS);
+			if (Thread.interrupted())
+				throw new InterruptedIOException("Interrupted while waiting for audio data");
+			if (this.buffer == null)
+				return -1;
+			read = reader.get(b, off, len);
+		}
+		return read;
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (buffer != null)
-			buffer.clear();
+		if (reader != null) {
+			reader.clear();
+			reader.close();
+		}
 		buffer = null;
+		reader = null;
 	}
 
 	@Override
 	public int available() throws IOException {
-		return buffer.available();
+		return reader == null ? 0 : reader.available();
+	}
+
+	/**
+	 * Sets how long a blocking read waits for data before returning 0. By default, it waits until data arrives, the buffer gets closed or the thread gets
+	 * interrupted.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
 	}
 
 	/** Returns the {@link CircularByteBuffer} backing this input stream or {@code null} if the stream has been closed */
 	public CircularByteBuffer getBuffer() {
 		return buffer;
 	}
+
+	/** Returns the reader this stream uses to read from its buffer or {@code null} if the stream has been closed */
+	public CircularByteBuffer.Reader getReader() {
+		return reader;
+	}
 }
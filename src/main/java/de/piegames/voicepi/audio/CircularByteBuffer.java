@@ -9,53 +9,166 @@ package de.piegames.voicepi.audio;
  * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
  * CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License. */
 
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import sun.misc.Unsafe;
+
 /**
  * A circular byte buffer (also called ring buffer) allows putting and and getting bytes in a FIFO way. Typical use cases are (usually concurrent/asynchronous)
  * producers and consumers operating on bytes. This enables building a multi-threaded processing pipeline.
  * <p/>
- * All put&get methods are non-blocking.
+ * All put&get methods are lock-free and never wait. The only methods that do are {@link #write(byte[], int, int, long, TimeUnit) timed writes}, which park
+ * while a reader with the {@link OverrunPolicy#BLOCK} policy is in the way, and {@link #awaitData(long, long, TimeUnit)}, which parks until the producer
+ * has written something.
+ * <p/>
+ * This class is thread-safe for exactly one producer thread (calling {@link #put(byte[], int, int)} or {@link #write(byte[], int, int)}) and one consumer
+ * thread per {@link Reader}. The producer never takes a lock and never waits for any consumer, so it is safe to be called from a realtime audio callback.
+ * <p/>
+ * Instead of indices that wrap around, the buffer counts the total amount of bytes written since its creation. Each reader keeps its own position in that
+ * sequence. A position is valid as long as it is not older than {@link #capacity()} bytes. The producer announces every write before touching the array
+ * ({@link #claimed}) and publishes it afterwards ({@link #written}). Readers compare their position against these counters after copying and discard
+ * everything that might have been overwritten in the meantime. This is a sequence lock, so the volatile counters alone are not enough: a store fence keeps
+ * the data from being written before the claim, and a load fence keeps readers from reading the data after checking the claim. Without them, weakly ordered
+ * CPUs like the ARM of a Raspberry Pi could hand out overwritten data as valid. Readers created with {@link #newReader()} never slow down the producer: if they fall
+ * behind for more than a whole buffer length they will lose the oldest data. The legacy FIFO methods ({@link #get()}, {@link #peek()}, {@link #skip(int)}
+ * etc.) operate on a built-in reader that is honored by {@link #put(byte[], int, int)}: it will only put as many bytes as are free for that reader.
  * <p/>
- * This class is thread-safe.
+ * The second half of the backing array mirrors the first one. This way, every span of at most {@link #capacity()} bytes is contiguous in memory and can be
+ * handed out as {@link #slice(long, int) slice} without copying. To make sure such a slice stays valid, its data can be {@link #pin(long) pinned}.
+ * <p/>
+ * What happens when a reader falls behind is decided by its {@link OverrunPolicy}. By default it loses the oldest data, but it may also keep the producer
+ * from overwriting it. How much data got lost either way is counted, see {@link BufferMetrics}.
+ * <p/>
+ * Consumers that have nothing to read can {@link #awaitData(long, long, TimeUnit) wait} for the producer. Waiting threads register themselves in a fixed
+ * array of slots that the producer scans after each write to unpark them. The producer doesn't lock or allocate for this, but unparking is not free: the JVM
+ * takes a lock of the parked thread and may need a system call to wake it. Realtime producers should therefore {@link #setSignaling(boolean) disable} this,
+ * then a write is just a few atomic stores and waiting threads poll for new data every {@link #POLL_INTERVAL} nanoseconds instead.
  * <p/>
  * This class got extended from the original source code to allow more direct access to the data: Raw reading of the buffer, getting/setting the current index
- * and direct operations with buffers (TODO)
+ * and multiple readers.
  */
-public class CircularByteBuffer {
+public class CircularByteBuffer implements BufferMetrics {
+
+	/** What happens to the data of a reader that falls behind the producer by more than the capacity */
+	public static enum OverrunPolicy {
+		/** The producer overwrites the oldest data, the reader skips what it lost. This never slows down the producer. */
+		OVERWRITE_OLDEST,
+		/** The producer drops new data that would overwrite anything the reader has not read yet */
+		DROP_NEWEST,
+		/**
+		 * Like {@link #DROP_NEWEST}, but producers using {@link CircularByteBuffer#write(byte[], int, int, long, TimeUnit)} wait for the reader instead of
+		 * dropping. Never use this if the producer is a realtime thread.
+		 */
+		BLOCK;
+	}
+
+	/** The backing array, twice the capacity. {@code null} for subclasses storing the data elsewhere. */
+	protected final byte[]		buffer;
+	protected final int			capacity;
+
+	/** The total amount of bytes the producer is about to have written once the current write operation finishes */
+	protected final AtomicLong	claimed	= new AtomicLong();
+	/** The total amount of bytes that have been written to this buffer and are visible to all readers */
+	protected final AtomicLong	written	= new AtomicLong();
+	/** The reader used by the FIFO methods of this class */
+	protected final Reader		reader	= new Reader(0);
+	/** All data after the oldest pin must not be overwritten. Copy on write, so that the producer can iterate it without locking or allocating. */
+	protected volatile Pin[]	pins	= new Pin[0];
+	/** Readers the producer must not overtake, by the same copy on write scheme as the pins */
+	protected volatile Reader[]	gates	= new Reader[0];
+	protected volatile boolean	closed;
 
-	protected final byte[]	buffer;
-	protected final int		capacity;
+	/* Metrics. The first one is only written by the producer, the others by any reader. */
+	protected volatile long				dropped;
+	protected final AtomicLong			overrun		= new AtomicLong();
+	protected final AtomicInteger		highWater	= new AtomicInteger();
+	/** A producer waiting in a blocking write, woken up by readers */
+	protected volatile Thread			blockedProducer;
 
-	protected int			available;
-	protected int			idxGet;
-	protected int			idxPut;
+	/** How many threads can wait for data at the same time and get woken up immediately. Any further ones will poll. */
+	protected static final int					MAX_WAITERS	= 8;
+	/** Threads waiting for data. The slots are claimed and released by the waiting threads, the producer only reads them. */
+	protected final AtomicReferenceArray<Thread>	waiters		= new AtomicReferenceArray<>(MAX_WAITERS);
+	/** The number of claimed slots, so that the producer doesn't have to scan them if nobody waits */
+	protected final AtomicInteger				waiting		= new AtomicInteger();
+	/** If the producer wakes up waiting threads. Otherwise they poll. */
+	protected volatile boolean					signaling	= true;
+
+	/** How often threads waiting for data check for it if nobody wakes them up, in nanoseconds */
+	protected static final long	POLL_INTERVAL	= TimeUnit.MILLISECONDS.toNanos(2);
+
+	/** Provides the fences, which Java 8 has no public API for */
+	private static final Unsafe						UNSAFE;
+
+	static {
+		try {
+			Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			UNSAFE = (Unsafe) theUnsafe.get(null);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	public CircularByteBuffer() {
 		this(8192);
 	}
 
 	public CircularByteBuffer(int capacity) {
+		this(capacity, true);
+	}
+
+	/** For subclasses that override the storage methods ({@link #load(int)}, {@link #store(int, byte)} etc.) and don't need the backing array */
+	protected CircularByteBuffer(int capacity, boolean allocate) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive, " + capacity + " given");
 		this.capacity = capacity;
-		buffer = new byte[this.capacity];
+		buffer = allocate ? new byte[2 * this.capacity] : null;
+	}
+
+	/** Reads the byte at the given array index */
+	protected byte load(int index) {
+		return buffer[index];
+	}
+
+	/** Copies {@code len} bytes starting at the given array index into {@code dst}. The range never exceeds the doubled array. */
+	protected void load(int index, byte[] dst, int off, int len) {
+		System.arraycopy(buffer, index, dst, off, len);
+	}
+
+	/** Sets the byte at the given array index */
+	protected void store(int index, byte value) {
+		buffer[index] = value;
+	}
+
+	/** Copies {@code len} bytes from {@code src} to the given array index. The range never exceeds the doubled array. */
+	protected void store(int index, byte[] src, int off, int len) {
+		System.arraycopy(src, off, buffer, index, len);
+	}
+
+	/** A view on {@code length} bytes starting at the given array index */
+	protected ByteBuffer view(int index, int length) {
+		return ByteBuffer.wrap(buffer, index, length).slice();
 	}
 
 	/**
-	 * Clears all data from the buffer.
+	 * Clears all data from the buffer. This only affects the built-in reader, all other readers keep their data.
 	 */
-	public synchronized void clear() {
-		idxGet = idxPut = available = 0;
+	public void clear() {
+		reader.clear();
 	}
 
 	/**
 	 * Gets a single byte return or -1 if no data is available.
 	 */
-	public synchronized int get() {
-		if (available == 0) {
-			return -1;
-		}
-		byte value = buffer[idxGet];
-		idxGet = (idxGet + 1) % capacity;
-		available--;
-		return value;
+	public int get() {
+		return reader.get();
 	}
 
 	/**
@@ -72,51 +185,41 @@ public class CircularByteBuffer {
 	 *
 	 * @return number of bytes actually got from this buffer (0 if no bytes are available)
 	 */
-	public synchronized int get(byte[] dst, int off, int len) {
-		if (available == 0) {
-			return 0;
-		}
+	public int get(byte[] dst, int off, int len) {
+		return reader.get(dst, off, len);
+	}
 
-		// limit is last index to read + 1
-		int limit = idxGet < idxPut ? idxPut : capacity;
-		int count = Math.min(limit - idxGet, len);
-		System.arraycopy(buffer, idxGet, dst, off, count);
-		idxGet += count;
-
-		if (idxGet == capacity) {
-			// Array end reached, check if we have more
-			int count2 = Math.min(len - count, idxPut);
-			if (count2 > 0) {
-				System.arraycopy(buffer, 0, dst, off + count, count2);
-				idxGet = count2;
-				count += count2;
-			} else {
-				idxGet = 0;
-			}
-		}
-		available -= count;
-		return count;
+	/**
+	 * Copies {@code len} bytes starting at the array index {@code srcPos} into {@code dst}, wrapping around at the end of the buffer. No reader will be
+	 * modified, and no check is done whether the data is still valid.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int getRaw(int srcPos, byte[] dst, int dstOff, int len) {
+		len = Math.min(len, capacity);
+		load(srcPos, dst, dstOff, len);
+		return len;
 	}
 
-	public synchronized int getRaw(int srcPos, byte[] dst, int dstOff, int len) {
-		int remaining = len;
-		while (remaining > 0) {
-			int count = srcPos + len < capacity ? len : capacity - srcPos;
-			System.arraycopy(buffer, srcPos, dst, dstOff, count);
-			srcPos = (srcPos + count) % capacity;
-			len -= count;
-			dstOff += count;
-			remaining -= count;
-		}
-		return len - remaining;
+	/**
+	 * Returns a read-only view on the {@code length} bytes starting at the given position. No data will be copied, thus the content of the returned buffer
+	 * will change once the producer overwrites it. Use {@link #pin(long)} to prevent this.
+	 */
+	public ByteBuffer slice(long position, int length) {
+		if (length > capacity)
+			throw new IllegalArgumentException("Cannot slice more than the capacity of " + capacity + " bytes, " + length + " given");
+		return view(indexOf(position), length).asReadOnlyBuffer();
 	}
 
+	/** Returns the array index the built-in reader will read next */
 	public int getIndex() {
-		return idxGet;
+		return reader.getIndex();
 	}
 
+	/** Moves the built-in reader to the given array index. It will be placed within the last {@link #capacity()} written bytes. */
 	public void setIndex(int index) {
-		idxGet = index;
+		long w = written.get();
+		reader.position.lazySet(w - Math.floorMod(indexOf(w) - index, capacity));
 	}
 
 	/**
@@ -124,13 +227,20 @@ public class CircularByteBuffer {
 	 *
 	 * @return true if the byte was put, or false if the buffer is full
 	 */
-	public synchronized boolean put(byte value) {
-		if (available == capacity) {
+	public boolean put(byte value) {
+		if (free() == 0) {
 			return false;
 		}
-		buffer[idxPut] = value;
-		idxPut = (idxPut + 1) % capacity;
-		available++;
+		long w = written.get();
+		if (pinnedLimit(w) < 1)
+			return false;
+		if (claim(w, 1) < 1)
+			return false;
+		int index = indexOf(w);
+		store(index, value);
+		store(index + capacity, value);
+		written.set(w + 1);
+		signal();
 		return true;
 	}
 
@@ -148,37 +258,226 @@ public class CircularByteBuffer {
 	 *
 	 * @return number of bytes actually put into this buffer (0 if the buffer is full)
 	 */
-	public synchronized int put(byte[] src, int off, int len) {
-		if (available == capacity) {
+	public int put(byte[] src, int off, int len) {
+		int count = Math.min(len, free());
+		return count > 0 ? write(src, off, count) : 0;
+	}
+
+	/** Writes all bytes of {@code src} to the buffer, overwriting the oldest data if needed. See {@link #write(byte[], int, int)}. */
+	public int write(byte[] src) {
+		return write(src, 0, src.length);
+	}
+
+	/**
+	 * Writes the given bytes to the buffer, overwriting the oldest data if needed. Contrary to {@link #put(byte[], int, int)} this will not care about the
+	 * built-in reader. If more than {@link #capacity()} bytes are given, only the most recent ones will be kept. Pinned data and data of readers that don't
+	 * allow overwriting won't be overwritten, the bytes that don't fit will be dropped instead. This may only be called from the producer thread.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int write(byte[] src, int off, int len) {
+		int count = writeAvailable(src, off, len);
+		if (count < len)
+			dropped += len - count;
+		return count;
+	}
+
+	/**
+	 * Like {@link #write(byte[], int, int)}, but if a reader with the {@link OverrunPolicy#BLOCK} policy is in the way, this waits up to the given time for it
+	 * to catch up. Only what is still left after that gets dropped. Not to be used by realtime producers.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int write(byte[] src, int off, int len, long timeout, TimeUnit unit) {
+		long nanos = unit.toNanos(timeout);
+		long start = System.nanoTime();
+		int total = 0;
+		blockedProducer = Thread.currentThread();
+		try {
+			while (total < len) {
+				total += writeAvailable(src, off + total, len - total);
+				if (total == len)
+					break;
+				long w = written.get();
+				long remaining = nanos - (System.nanoTime() - start);
+				// Only wait if a blocking reader is the reason, not a pin or another reader
+				if (remaining <= 0 || closed || Thread.currentThread().isInterrupted() || limit(w, OverrunPolicy.BLOCK) >= limit(w, OverrunPolicy.DROP_NEWEST))
+					break;
+				LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+			}
+		} finally {
+			blockedProducer = null;
+		}
+		dropped += len - total;
+		return total;
+	}
+
+	/** Writes as much as possible without overwriting anything pinned or gated, without counting anything as dropped */
+	protected int writeAvailable(byte[] src, int off, int len) {
+		long w = written.get();
+		if (len > capacity && pins.length == 0 && gates.length == 0) {
+			// Nobody cares about the oldest bytes
+			off += len - capacity;
+			len = capacity;
+		}
+		len = (int) Math.min(len, pinnedLimit(w));
+		if (len <= 0)
+			return 0;
+		len = (int) claim(w, len);
+		if (len <= 0)
 			return 0;
+		int index = indexOf(w);
+		int first = Math.min(len, capacity - index);
+		// Write to the primary half and mirror it to the second one
+		store(index, src, off, first);
+		store(index + capacity, src, off, first);
+		store(0, src, off + first, len - first);
+		store(capacity, src, off + first, len - first);
+		// A full volatile write, so that a consumer registering itself right now either sees the data or gets signaled
+		written.set(w + len);
+		signal();
+		return len;
+	}
+
+	/**
+	 * Announces a write of {@code len} bytes at {@code w}, so that readers know which data to discard. A pin may have been added after the caller checked
+	 * {@link #pinnedLimit(long)}, but before this claim became visible, so the pin does not know about it. The limit is therefore checked again after
+	 * claiming, and the write gets shortened if needed. Either this sees the pin or the pin sees the claim, see {@link #pin(long)}.
+	 *
+	 * @return the number of bytes that may be written, which may be 0
+	 */
+	protected long claim(long w, long len) {
+		claimed.set(w + len);
+		long limit = pinnedLimit(w);
+		if (limit < len) {
+			len = Math.max(0, limit);
+			claimed.set(w + len);
+		}
+		// Nothing may be stored before the claim is visible
+		UNSAFE.storeFence();
+		return len;
+	}
+
+	/** Makes sure that all data copied so far has been read before checking {@link #claimed} again. See {@link #claim(long, long)} for the other side. */
+	protected static void loadFence() {
+		UNSAFE.loadFence();
+	}
+
+	/**
+	 * Sets if the producer wakes up threads {@link #awaitData(long, long, TimeUnit) waiting} for data after each write (which is the default). Disable it if the
+	 * producer is a realtime thread, then waiting threads notice new data only up to {@link #POLL_INTERVAL} later. This does not affect
+	 * {@link #close()}.
+	 */
+	public void setSignaling(boolean signaling) {
+		this.signaling = signaling;
+	}
+
+	/** Called by the producer after each write, wakes up all threads waiting for data unless {@link #setSignaling(boolean) disabled} */
+	protected void signal() {
+		if (signaling)
+			wakeWaiters();
+	}
+
+	/** Wakes up all threads waiting for data */
+	protected void wakeWaiters() {
+		if (waiting.get() == 0)
+			return;
+		for (int i = 0; i < MAX_WAITERS; i++) {
+			Thread waiter = waiters.get(i);
+			if (waiter != null)
+				LockSupport.unpark(waiter);
 		}
+	}
 
-		// limit is last index to put + 1
-		int limit = idxPut < idxGet ? idxGet : capacity;
-		int count = Math.min(limit - idxPut, len);
-		System.arraycopy(src, off, buffer, idxPut, count);
-		idxPut += count;
-
-		if (idxPut == capacity) {
-			// Array end reached, check if we have more
-			int count2 = Math.min(len - count, idxGet);
-			if (count2 > 0) {
-				System.arraycopy(src, off + count, buffer, 0, count2);
-				idxPut = count2;
-				count += count2;
-			} else {
-				idxPut = 0;
+	/**
+	 * Blocks until data after {@code position} has been written, the buffer got closed, the calling thread got interrupted or the timeout passed. The
+	 * interrupted status will be kept. Use {@link Long#MAX_VALUE} nanoseconds to wait without a timeout.
+	 *
+	 * @return {@code true} if there is data after {@code position}
+	 */
+	public boolean awaitData(long position, long timeout, TimeUnit unit) {
+		long nanos = unit.toNanos(timeout);
+		long start = System.nanoTime();
+		Thread current = Thread.currentThread();
+		int slot = -1;
+		// The slot is still needed without signaling, so that closing wakes up this thread
+		for (int i = 0; i < MAX_WAITERS && slot < 0; i++)
+			if (waiters.compareAndSet(i, null, current))
+				slot = i;
+		if (slot >= 0)
+			waiting.incrementAndGet();
+		try {
+			while (written.get() <= position && !closed && !current.isInterrupted()) {
+				long remaining = nanos - (System.nanoTime() - start);
+				if (remaining <= 0)
+					break;
+				// Without a slot or signaling, nobody will wake us up when data arrives
+				LockSupport.parkNanos(this, slot >= 0 && signaling ? remaining : Math.min(remaining, POLL_INTERVAL));
+			}
+		} finally {
+			if (slot >= 0) {
+				waiting.decrementAndGet();
+				waiters.set(slot, null);
 			}
 		}
-		available += count;
-		return count;
+		return written.get() > position;
+	}
+
+	/** The amount of bytes that may be written starting at the given position without overwriting pinned data or data of gating readers */
+	protected long pinnedLimit(long w) {
+		long limit = capacity;
+		for (Pin pin : pins)
+			limit = Math.min(limit, pin.position + capacity - w);
+		for (Reader reader : gates)
+			limit = Math.min(limit, reader.position.get() + capacity - w);
+		return limit;
+	}
+
+	/** Like {@link #pinnedLimit(long)}, but only regarding the readers with the given policy, or everything else if it is {@link OverrunPolicy#DROP_NEWEST} */
+	protected long limit(long w, OverrunPolicy policy) {
+		long limit = capacity;
+		if (policy == OverrunPolicy.DROP_NEWEST)
+			for (Pin pin : pins)
+				limit = Math.min(limit, pin.position + capacity - w);
+		for (Reader reader : gates)
+			if (reader.policy == policy)
+				limit = Math.min(limit, reader.position.get() + capacity - w);
+		return limit;
+	}
+
+	protected synchronized void setGate(Reader reader, boolean gate) {
+		Reader[] gates = Arrays.stream(this.gates).filter(r -> r != reader).toArray(Reader[]::new);
+		if (gate) {
+			gates = Arrays.copyOf(gates, gates.length + 1);
+			gates[gates.length - 1] = reader;
+		}
+		this.gates = gates;
+	}
+
+	/**
+	 * Prevents the producer from overwriting any data starting at the given position until the returned pin is closed. If some of the data is already lost,
+	 * the position of the pin will be moved to the oldest data that is still valid. Pins should only be held for a short time, since the producer will drop
+	 * all new data once it reaches a pin.
+	 */
+	public synchronized Pin pin(long position) {
+		Pin pin = new Pin(Math.max(position, claimed.get() - capacity));
+		Pin[] pins = Arrays.copyOf(this.pins, this.pins.length + 1);
+		pins[pins.length - 1] = pin;
+		this.pins = pins;
+		// A write may have claimed more in the meantime without seeing the pin. Writes claiming after this point will see it and stop in front of it.
+		pin.position = Math.max(pin.position, claimed.get() - capacity);
+		return pin;
+	}
+
+	protected synchronized void unpin(Pin pin) {
+		this.pins = Arrays.stream(pins).filter(p -> p != pin).toArray(Pin[]::new);
 	}
 
 	/**
 	 * Return the first byte a <b>get</b> would return or -1 if no data is available.
 	 */
-	public synchronized int peek() {
-		return available > 0 ? buffer[idxGet] : -1;
+	public int peek() {
+		return reader.peek();
 	}
 
 	/**
@@ -186,13 +485,8 @@ public class CircularByteBuffer {
 	 *
 	 * @return number of bytes actually skipped from this buffer (0 if no bytes are available)
 	 */
-	public synchronized int skip(int count) {
-		if (count > available) {
-			count = available;
-		}
-		idxGet = (idxGet + count) % capacity;
-		available -= count;
-		return count;
+	public int skip(int count) {
+		return reader.skip(count);
 	}
 
 	/**
@@ -205,14 +499,274 @@ public class CircularByteBuffer {
 	/**
 	 * Returns the number of bytes available and can be get without additional puts.
 	 */
-	public synchronized int available() {
-		return available;
+	public int available() {
+		return reader.available();
 	}
 
 	/**
 	 * Returns the number of free bytes available that can still be put without additional gets.
 	 */
-	public synchronized int free() {
-		return capacity - available;
+	public int free() {
+		return capacity - available();
+	}
+
+	/** Returns the total amount of bytes that have been written to this buffer since its creation. */
+	public long getWritePosition() {
+		return written.get();
+	}
+
+	/** Creates a new {@link Reader} that will start reading at the current write position, thus only getting data written after this call. */
+	public Reader newReader() {
+		return newReader(0);
+	}
+
+	/**
+	 * Creates a new {@link Reader} that will start reading {@code lookback} bytes before the current write position. If less data is available, it will start
+	 * at the oldest data still in the buffer.
+	 */
+	public Reader newReader(int lookback) {
+		return new Reader(Math.max(0, written.get() - Math.max(0, lookback)));
+	}
+
+	/**
+	 * Marks this buffer as closed. It is still possible to read all remaining data, but it is expected that the producer won't write any data anymore. Streams
+	 * reading from a closed buffer will return EOF once they reached its end.
+	 */
+	public void close() {
+		closed = true;
+		wakeWaiters();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the buffer and frees its memory right away instead of waiting for the garbage collector. Nothing may be read from it afterwards. Heap buffers
+	 * can't do this and only get closed.
+	 */
+	public void release() {
+		close();
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return written.get();
+	}
+
+	@Override
+	public long getBytesDropped() {
+		return dropped;
+	}
+
+	@Override
+	public long getBytesOverrun() {
+		return overrun.get();
+	}
+
+	@Override
+	public int getHighWaterMark() {
+		return highWater.get();
+	}
+
+	protected int indexOf(long position) {
+		return (int) (position % capacity);
+	}
+
+	/**
+	 * A cursor into the data of a {@link CircularByteBuffer}. Each reader has its own position and may only be used by one thread at a time. The producer will
+	 * overwrite the data of readers that are too slow. They will skip the lost data and continue with the oldest data still available.
+	 */
+	public class Reader implements AutoCloseable {
+
+		protected final AtomicLong			position;
+		protected volatile OverrunPolicy	policy	= OverrunPolicy.OVERWRITE_OLDEST;
+		/* Metrics, only written by the thread using this reader */
+		protected volatile long				overrun;
+		protected volatile int				maxLag;
+
+		protected Reader(long position) {
+			this.position = new AtomicLong(position);
+		}
+
+		/**
+		 * Sets what happens if this reader falls behind. Readers that gate the producer must be {@link #close() closed} once they aren't used anymore, or they
+		 * will block it forever.
+		 */
+		public void setOverrunPolicy(OverrunPolicy policy) {
+			this.policy = policy;
+			setGate(this, policy != OverrunPolicy.OVERWRITE_OLDEST);
+		}
+
+		public OverrunPolicy getOverrunPolicy() {
+			return policy;
+		}
+
+		/** Stops this reader from gating the producer. It may still be used to read. */
+		@Override
+		public void close() {
+			setGate(this, false);
+		}
+
+		/** Moves to the new position after reading and updates the metrics. {@code from} is the position before any data got lost. */
+		protected void advance(long from, long lostUntil, long to, long w) {
+			if (lostUntil > from) {
+				overrun += lostUntil - from;
+				CircularByteBuffer.this.overrun.addAndGet(lostUntil - from);
+			}
+			int lag = (int) Math.min(capacity, w - from);
+			if (lag > maxLag) {
+				maxLag = lag;
+				highWater.accumulateAndGet(lag, Math::max);
+			}
+			position.lazySet(to);
+			Thread producer = blockedProducer;
+			if (producer != null)
+				LockSupport.unpark(producer);
+		}
+
+		/** Gets a single byte or -1 if no data is available. */
+		public int get() {
+			while (true) {
+				long w = written.get();
+				long pos = validPosition();
+				if (pos >= w)
+					return -1;
+				byte value = load(indexOf(pos));
+				loadFence();
+				if (pos >= claimed.get() - capacity) {
+					advance(position.get(), pos, pos + 1, w);
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * Gets as many of the requested bytes as available from the buffer.
+		 *
+		 * @return number of bytes actually got from this buffer (0 if no bytes are available)
+		 */
+		public int get(byte[] dst, int off, int len) {
+			while (true) {
+				long w = written.get();
+				long pos = validPosition();
+				int count = (int) Math.min(len, w - pos);
+				if (count <= 0) {
+					position.lazySet(pos);
+					return 0;
+				}
+				load(indexOf(pos), dst, off, count);
+				loadFence();
+
+				// The producer may have overwritten the beginning of what we just copied. Throw that part away
+				long lost = claimed.get() - capacity - pos;
+				if (lost >= count) {
+					continue;
+				} else if (lost > 0) {
+					System.arraycopy(dst, off + (int) lost, dst, off, count - (int) lost);
+					count -= lost;
+					pos += lost;
+				}
+				advance(position.get(), pos, pos + count, w);
+				return count;
+			}
+		}
+
+		/** Return the first byte a <b>get</b> would return or -1 if no data is available. */
+		public int peek() {
+			while (true) {
+				long pos = validPosition();
+				if (pos >= written.get())
+					return -1;
+				byte value = load(indexOf(pos));
+				loadFence();
+				if (pos >= claimed.get() - capacity)
+					return value;
+			}
+		}
+
+		/**
+		 * Skips the given count of bytes, but at most the currently available count.
+		 *
+		 * @return number of bytes actually skipped (0 if no bytes are available)
+		 */
+		public int skip(int count) {
+			long w = written.get();
+			long pos = validPosition();
+			count = (int) Math.min(count, w - pos);
+			advance(position.get(), pos, pos + count, w);
+			return count;
+		}
+
+		/** Skips all available data */
+		public void clear() {
+			position.lazySet(written.get());
+		}
+
+		/** Returns the number of bytes available to this reader. */
+		public int available() {
+			return (int) (written.get() - validPosition());
+		}
+
+		/** Returns the total amount of bytes this reader has read or skipped, including the ones it lost because it was too slow. */
+		public long getPosition() {
+			return validPosition();
+		}
+
+		/** Returns the array index this reader will read next */
+		public int getIndex() {
+			return indexOf(validPosition());
+		}
+
+		/** How many bytes this reader is behind the producer */
+		public int getLag() {
+			return (int) Math.min(capacity, written.get() - position.get());
+		}
+
+		/** The most bytes this reader has been behind the producer when reading */
+		public int getMaxLag() {
+			return maxLag;
+		}
+
+		/** How many bytes got overwritten before this reader could read them */
+		public long getBytesOverrun() {
+			return overrun;
+		}
+
+		/** Returns the {@link CircularByteBuffer} this reader reads from */
+		public CircularByteBuffer getBuffer() {
+			return CircularByteBuffer.this;
+		}
+
+		/** The own position, but not older than the oldest data that cannot be overwritten by the producer yet. */
+		protected long validPosition() {
+			return Math.max(position.get(), claimed.get() - capacity);
+		}
+	}
+
+	/** Keeps the producer from overwriting data. See {@link CircularByteBuffer#pin(long)}. */
+	public class Pin implements AutoCloseable {
+
+		protected volatile long position;
+
+		protected Pin(long position) {
+			this.position = position;
+		}
+
+		/** The position of the oldest byte protected by this pin */
+		public long getPosition() {
+			return position;
+		}
+
+		/** Releases the data protected by this pin. Calling this multiple times has no effect. */
+		@Override
+		public void close() {
+			unpin(this);
+		}
 	}
 }
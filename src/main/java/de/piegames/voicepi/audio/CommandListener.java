@@ -0,0 +1,28 @@
+package de.piegames.voicepi.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Receives the audio of a command while it is still being spoken, see {@link Audio#recordCommand(CommandListener)}. This allows recognizers to start working
+ * right away instead of waiting for the command to be over. All methods are called on the thread recording the command and should return quickly, since no
+ * more audio is analyzed in the meantime.
+ */
+public interface CommandListener {
+
+	/** Called as soon as speech has been detected, before any audio is passed on. */
+	public void commandStarted(AudioFormat format);
+
+	/**
+	 * Called with consecutive pieces of the command's audio. The first one includes the pre-roll before the detected start, the following ones are passed as
+	 * soon as they have been recorded. Pauses are passed on as well, since it is not known if the command continues after them. The segment is only valid
+	 * during this call.
+	 */
+	public void commandAudio(AudioSegment audio);
+
+	/**
+	 * Called once the command is over. Only called if {@link #commandStarted(AudioFormat)} has been called before.
+	 *
+	 * @param aborted {@code true} if the speech turned out not to be a command, e.g. because it was too short. All audio passed so far should be discarded.
+	 */
+	public void commandFinished(boolean aborted);
+}
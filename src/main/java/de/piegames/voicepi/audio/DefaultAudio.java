@@ -1,7 +1,13 @@
 package de.piegames.voicepi.audio;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -11,11 +17,27 @@ import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import de.piegames.voicepi.audio.Playback.Category;
 
 /** Implements the {@link Audio} class using Java's javax.sound package which will use whatever is available on the current system. */
 public class DefaultAudio extends Audio {
 
-	protected AudioFormat format;
+	protected AudioFormat		format;
+	/** The capture line. It may be replaced by the capture thread if the system closes it. */
+	protected volatile TargetDataLine	line;
+	protected Thread			captureThread;
+	/**
+	 * If {@code mixOutput} is set, all played audio gets mixed and converted to {@code outputFormat} and written to a single output line that stays open for
+	 * the whole time. Otherwise every stream is played in its own format on a line from {@link #idleLines}.
+	 */
+	protected boolean			mixOutput;
+	protected AudioFormat		outputFormat;
+	/** The output line. It may be replaced by the output thread if the system closes it. */
+	protected volatile SourceDataLine	outputLine;
+	protected AudioMixer		mixer;
+	protected Thread			outputThread;
+	/** Opened lines that currently don't play anything, by the string representation of their format. Opening a line may take a few hundred milliseconds. */
+	protected final Map<String, Queue<SourceDataLine>>	idleLines	= new ConcurrentHashMap<>();
 
 	public DefaultAudio(JsonObject config) {
 		super(config);
@@ -25,74 +47,280 @@ public class DefaultAudio extends Audio {
 				Optional.ofNullable(config.getAsJsonPrimitive("channels")).map(JsonPrimitive::getAsInt).orElse(FORMAT.getChannels()),
 				Optional.ofNullable(config.getAsJsonPrimitive("signed")).map(JsonPrimitive::getAsBoolean).orElse(true),
 				Optional.ofNullable(config.getAsJsonPrimitive("big-endian")).map(JsonPrimitive::getAsBoolean).orElse(false));
+		this.mixOutput = Optional.ofNullable(config.getAsJsonPrimitive("mix-output")).map(JsonPrimitive::getAsBoolean).orElse(true);
+		this.outputFormat = new AudioFormat(
+				Optional.ofNullable(config.getAsJsonPrimitive("output-sample-rate")).map(JsonPrimitive::getAsFloat).orElse(44100f),
+				16,
+				Optional.ofNullable(config.getAsJsonPrimitive("output-channels")).map(JsonPrimitive::getAsInt).orElse(2),
+				true, false);
 	}
 
-	@Override
-	public AudioInputStream normalListening(AudioFormat targetEncoding) throws IOException {
+	/**
+	 * Opens the capture line and starts the thread writing everything it records to the {@link #captureBuffer}. This will happen lazily on the first listener,
+	 * so that applications not using the microphone don't need one.
+	 */
+	protected synchronized void startCapture() throws IOException {
+		if (captureThread != null)
+			return;
+		line = openCaptureLine();
+		captureBuffer = newCommandBuffer();
+		noiseFloor.setFormat(format);
+		captureThread = new Thread(this::capture, "DefaultAudio capture thread");
+		captureThread.setDaemon(true);
+		captureThread.start();
+	}
+
+	protected TargetDataLine openCaptureLine() throws IOException {
 		try {
-			if (AudioSystem.isLineSupported(new DataLine.Info(TargetDataLine.class, targetEncoding))) {
-				TargetDataLine line = (TargetDataLine) AudioSystem.getLine(new DataLine.Info(TargetDataLine.class, targetEncoding));
-				line.open(format);
-				line.start();
-				AudioInputStream stream = new AudioInputStream(line);
-				return stream;
+			TargetDataLine line = (TargetDataLine) AudioSystem.getLine(new DataLine.Info(TargetDataLine.class, format));
+			line.open(format);
+			line.start();
+			return line;
+		} catch (LineUnavailableException | IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Runs in the capture thread and copies all data from the line to the {@link #captureBuffer} until interrupted. Also keeps track of the noise floor. */
+	protected void capture() {
+		CircularByteBuffer captureBuffer = this.captureBuffer;
+		// About 20ms of audio per chunk
+		byte[] data = new byte[Math.max(secondsToBytes(format, 0.02f), format.getFrameSize())];
+		while (!Thread.currentThread().isInterrupted()) {
+			// Closing may not wait for this thread to finish, so never touch the field twice
+			TargetDataLine line = this.line;
+			if (line == null)
+				break;
+			int read = line.read(data, 0, data.length);
+			if (read > 0) {
+				captureBuffer.write(data, 0, read);
+				noiseFloor.process(data, 0, read);
+			} else if (Thread.currentThread().isInterrupted()) {
+				break;
+			} else if (!line.isOpen()) {
+				reopenCapture();
 			} else {
-				TargetDataLine line = (TargetDataLine) AudioSystem.getLine(new DataLine.Info(TargetDataLine.class, format));
-				line.open(format);
-				line.start();
-				AudioInputStream stream = new AudioInputStream(line);
-				stream = formatStream(stream, targetEncoding);
-				return stream;
+				// The line has been stopped, reading returns immediately
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
 			}
-		} catch (LineUnavailableException e) {
+		}
+		captureBuffer.close();
+		log.debug("Capture buffer: " + captureBuffer.describe());
+	}
+
+	/** Called by the capture thread if the capture line got closed by the system, for example because the device disappeared */
+	protected void reopenCapture() {
+		log.warn("The capture line has been closed, reopening it");
+		try {
+			TargetDataLine line = openCaptureLine();
+			synchronized (this) {
+				// Unless the audio got closed in the meantime
+				if (captureThread == Thread.currentThread()) {
+					this.line = line;
+					return;
+				}
+			}
+			line.close();
+		} catch (IOException e) {
+			log.warn("Could not reopen the capture line", e);
+			// Don't spin while the device is gone
+			LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	/** Opens the output line and starts the thread feeding it from the {@link #mixer}. Like capturing, this happens lazily when something gets played first. */
+	protected synchronized AudioMixer startOutput() throws IOException {
+		if (outputThread != null)
+			return mixer;
+		// A small buffer keeps the latency of ducking and newly started sounds low
+		outputLine = openLine(outputFormat, secondsToBytes(outputFormat, 0.1f));
+		outputLine.start();
+		mixer = new AudioMixer(outputFormat.getSampleRate(), outputFormat.getChannels(), duckGain, duckTime);
+		outputThread = new Thread(this::output, "DefaultAudio output thread");
+		outputThread.setDaemon(true);
+		outputThread.start();
+		return mixer;
+	}
+
+	/** Runs in the output thread and writes the mixed audio to the line in about 10ms chunks. While nothing is playing it waits instead of writing silence. */
+	protected void output() {
+		AudioMixer mixer = this.mixer;
+		int frames = Math.max(1, (int) (outputFormat.getSampleRate() / 100));
+		float[] mixed = new float[frames * outputFormat.getChannels()];
+		byte[] data = new byte[mixed.length * 2];
+		while (!Thread.currentThread().isInterrupted()) {
+			if (!mixer.isActive()) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+				continue;
+			}
+			mixer.mix(mixed, frames);
+			for (int i = 0; i < mixed.length; i++) {
+				int sample = (int) (mixed[i] * 32767);
+				data[2 * i] = (byte) sample;
+				data[2 * i + 1] = (byte) (sample >> 8);
+			}
+			// Like in the capture thread, closing may not wait for this thread to finish
+			SourceDataLine line = outputLine;
+			if (line == null)
+				break;
+			line.write(data, 0, data.length);
+			if (!line.isOpen() && !Thread.currentThread().isInterrupted())
+				reopenOutput();
+		}
+	}
+
+	/** Called by the output thread if the output line got closed by the system, for example because the device disappeared */
+	protected void reopenOutput() {
+		log.warn("The output line has been closed, reopening it");
+		try {
+			SourceDataLine line = openLine(outputFormat, secondsToBytes(outputFormat, 0.1f));
+			line.start();
+			synchronized (this) {
+				// Unless the audio got closed in the meantime
+				if (outputThread == Thread.currentThread()) {
+					outputLine = line;
+					return;
+				}
+			}
+			line.close();
+		} catch (IOException e) {
+			log.warn("Could not reopen the output line", e);
+			// Don't spin while the device is gone
+			LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	/** Opens a new output line. Use {@link AudioSystem#NOT_SPECIFIED} as buffer size to get the default */
+	protected static SourceDataLine openLine(AudioFormat format, int bufferSize) throws IOException {
+		try {
+			SourceDataLine line = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, format));
+			if (bufferSize == AudioSystem.NOT_SPECIFIED)
+				line.open(format);
+			else
+				line.open(format, bufferSize);
+			return line;
+		} catch (LineUnavailableException | IllegalArgumentException e) {
 			throw new IOException(e);
 		}
 	}
 
 	@Override
-	public CircularBufferInputStream normalListening2() throws IOException {
-		AudioInputStream ain = normalListening(format);
-		CircularByteBuffer buffer = new CircularByteBuffer(getCommandBufferSize());
-		CircularBufferInputStream in = new CircularBufferInputStream(buffer) {
-
-			@Override
-			public int read(byte[] src, int off, int len) throws IOException {
-				if (buffer == null)
-					return -1;
-				int read = ain.read(src, off, len);
-				if (read < 1)
-					return read;
-				buffer.put(src, off, read);
-				buffer.skip(read);
-				return read;
+	public void close() throws IOException {
+		Thread outputThread, captureThread;
+		// Stop everything under the lock, but wait for the threads without it, since they may need it to notice that they have been stopped
+		synchronized (this) {
+			for (Queue<SourceDataLine> lines : idleLines.values())
+				for (SourceDataLine line; (line = lines.poll()) != null;)
+					line.close();
+			outputThread = this.outputThread;
+			this.outputThread = null;
+			if (outputThread != null) {
+				outputThread.interrupt();
+				mixer.close();
+				log.debug("Mixer: " + mixer.getUnderruns() + " underruns");
+				SourceDataLine outputLine = this.outputLine;
+				this.outputLine = null;
+				outputLine.stop();
+				outputLine.close();
 			}
-
-			@Override
-			public void close() throws IOException {
-				ain.close();
-				super.close();
+			captureThread = this.captureThread;
+			this.captureThread = null;
+			if (captureThread != null) {
+				captureThread.interrupt();
+				TargetDataLine line = this.line;
+				this.line = null;
+				line.stop();
+				line.close();
 			}
-		};
-		return in;
+		}
+		try {
+			if (outputThread != null)
+				outputThread.join(1000);
+		} catch (InterruptedException e) {
+			log.warn("Could not make sure that the output thread has finished", e);
+		}
+		try {
+			if (captureThread != null)
+				captureThread.join(1000);
+		} catch (InterruptedException e) {
+			log.warn("Could not make sure that the capture thread has finished", e);
+		}
+		super.close();
+	}
+
+	@Override
+	public AudioInputStream normalListening(AudioFormat targetEncoding) throws IOException {
+		startCapture();
+		AudioInputStream stream = new AudioInputStream(newCaptureStream(0), format, AudioSystem.NOT_SPECIFIED);
+		return formatStream(stream, targetEncoding);
 	}
 
 	@Override
-	public void play(AudioInputStream ais) throws IOException {
-		AudioFormat audioFormat = ais.getFormat();
+	public CircularBufferInputStream normalListening2() throws IOException {
+		return normalListening2(0);
+	}
+
+	@Override
+	public CircularBufferInputStream normalListening2(float lookback) throws IOException {
+		startCapture();
+		return newCaptureStream(lookback);
+	}
+
+	@Override
+	public void play(AudioInputStream stream) throws IOException {
+		play(stream, Category.SOUND);
+	}
+
+	@Override
+	public void play(AudioInputStream stream, Category category) throws IOException {
+		if (mixOutput)
+			startOutput().play(stream, category, 1).await();
+		else
+			playOnLine(stream);
+	}
+
+	/** Plays the stream without any conversion on an idle line of its format, which will be opened if there is none. The line is kept open afterwards. */
+	protected void playOnLine(AudioInputStream stream) throws IOException {
+		AudioFormat format = stream.getFormat();
+		Queue<SourceDataLine> lines = idleLines.computeIfAbsent(format.toString(), k -> new ConcurrentLinkedQueue<>());
+		SourceDataLine line = lines.poll();
+		if (line != null && !line.isOpen()) {
+			log.debug("Reopening closed line for " + format);
+			line = null;
+		}
+		if (line == null)
+			line = openLine(format, AudioSystem.NOT_SPECIFIED);
+		boolean reusable = false;
 		try {
-			SourceDataLine line = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, audioFormat));
-			line.open(audioFormat);
 			line.start();
-
 			int count = 0;
 			byte[] data = new byte[4096];
-			while ((count = ais.read(data)) != -1 && !Thread.interrupted())
+			boolean interrupted = false;
+			while (!(interrupted = Thread.interrupted()) && (count = stream.read(data)) != -1)
 				line.write(data, 0, count);
+			if (interrupted)
+				line.flush();
+			else
+				line.drain();
+			line.stop();
+			reusable = line.isOpen();
+		} finally {
+			if (reusable)
+				lines.add(line);
+			else
+				line.close();
+		}
+	}
 
-			line.drain();
-			line.close();
-		} catch (LineUnavailableException e) {
-			throw new IOException(e);
+	@Override
+	public Playback submit(AudioInputStream stream, Category category, float gain) {
+		if (!mixOutput)
+			return super.submit(stream, category, gain);
+		try {
+			return startOutput().play(stream, category, gain);
+		} catch (IOException e) {
+			// This will try again and report the error when awaited
+			return super.submit(stream, category, gain);
 		}
 	}
 
@@ -100,4 +328,9 @@ public class DefaultAudio extends Audio {
 	public AudioFormat getListeningFormat() {
 		return format;
 	}
+
+	@Override
+	public AudioFormat getOutputFormat() {
+		return mixOutput ? AudioMixer.mixingFormat(outputFormat.getSampleRate(), outputFormat.getChannels()) : null;
+	}
 }
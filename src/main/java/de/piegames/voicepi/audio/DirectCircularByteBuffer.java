@@ -0,0 +1,183 @@
+package de.piegames.voicepi.audio;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link CircularByteBuffer} that keeps its data in direct memory outside of the Java heap. Large buffers, like a minute of audio history, then don't have to
+ * be scanned and copied by the garbage collector. The memory can be freed right away using {@link #release()}.
+ * <p/>
+ * Releasing has to be safe while other threads may still access the buffer. Every access to the memory therefore counts itself in {@link #users}, and
+ * {@link #release()} waits until there are none left before freeing it. Afterwards, all data counts as overwritten, so readers won't get anything anymore. A
+ * reader that was in the middle of a read while the buffer got released may read silence. Memory that is still {@link #pin(long) pinned} is freed once the
+ * last pin is closed, slices must not be used after that.
+ */
+public class DirectCircularByteBuffer extends CircularByteBuffer {
+
+	private static final Log					log		= LogFactory.getLog(DirectCircularByteBuffer.class);
+
+	protected final ByteBuffer					memory;
+	/** Only used by the producer, so that writing doesn't allocate */
+	protected final ByteBuffer					writeView;
+	/** Each reading thread needs its own view for the relative bulk get methods */
+	protected final ThreadLocal<ByteBuffer>		readViews;
+	/** The number of threads currently accessing {@link #memory} */
+	protected final AtomicInteger				users	= new AtomicInteger();
+	protected volatile boolean					released;
+	protected boolean							freed;
+
+	public DirectCircularByteBuffer(int capacity) {
+		super(capacity, false);
+		memory = ByteBuffer.allocateDirect(2 * capacity);
+		writeView = memory.duplicate();
+		readViews = ThreadLocal.withInitial(memory::duplicate);
+	}
+
+	/** Registers an access to the memory. Returns {@code false} if it has been released, in which case it must not be accessed. */
+	protected boolean acquire() {
+		users.incrementAndGet();
+		if (!released)
+			return true;
+		users.decrementAndGet();
+		return false;
+	}
+
+	@Override
+	protected byte load(int index) {
+		if (!acquire())
+			return 0;
+		try {
+			return memory.get(index);
+		} finally {
+			users.decrementAndGet();
+		}
+	}
+
+	@Override
+	protected void load(int index, byte[] dst, int off, int len) {
+		if (!acquire()) {
+			Arrays.fill(dst, off, off + len, (byte) 0);
+			return;
+		}
+		try {
+			ByteBuffer view = readViews.get();
+			view.limit(index + len).position(index);
+			view.get(dst, off, len);
+		} finally {
+			users.decrementAndGet();
+		}
+	}
+
+	/* The producer stores only in writeAvailable and put, which hold the memory for the whole write */
+
+	@Override
+	protected void store(int index, byte value) {
+		memory.put(index, value);
+	}
+
+	@Override
+	protected void store(int index, byte[] src, int off, int len) {
+		writeView.limit(index + len).position(index);
+		writeView.put(src, off, len);
+	}
+
+	@Override
+	protected ByteBuffer view(int index, int length) {
+		ByteBuffer view = memory.duplicate();
+		view.limit(index + length).position(index);
+		return view.slice();
+	}
+
+	@Override
+	protected int writeAvailable(byte[] src, int off, int len) {
+		if (!acquire())
+			return 0;
+		try {
+			return super.writeAvailable(src, off, len);
+		} finally {
+			users.decrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean put(byte value) {
+		if (!acquire())
+			return false;
+		try {
+			return super.put(value);
+		} finally {
+			users.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void release() {
+		close();
+		synchronized (this) {
+			if (released)
+				return;
+			released = true;
+		}
+		// Nobody can start accessing the memory anymore, wait for those who already do
+		while (users.get() > 0)
+			LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+		// Everything is lost for the readers
+		claimed.set(written.get() + capacity);
+		synchronized (this) {
+			if (pins.length == 0)
+				freeMemory();
+		}
+	}
+
+	@Override
+	protected synchronized void unpin(Pin pin) {
+		super.unpin(pin);
+		if (released && pins.length == 0)
+			freeMemory();
+	}
+
+	/** Returns {@code true} once {@link #release()} has been called, even if the memory is still held by a pin */
+	public boolean isReleased() {
+		return released;
+	}
+
+	protected synchronized void freeMemory() {
+		if (freed)
+			return;
+		freed = true;
+		freeMemory(memory);
+	}
+
+	/**
+	 * Frees the memory of a direct buffer immediately. There is no official API for that, so this uses {@code Unsafe.invokeCleaner} on Java 9 and above and
+	 * the buffer's cleaner on Java 8. If neither works, the memory will be freed once the buffer gets garbage collected.
+	 */
+	protected static void freeMemory(ByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {
+				Method getCleaner = buffer.getClass().getMethod("cleaner");
+				getCleaner.setAccessible(true);
+				Object cleaner = getCleaner.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.debug("Could not free direct buffer, leaving it to the garbage collector", e);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package de.piegames.voicepi.audio;
+
+import java.util.Optional;
+import javax.sound.sampled.AudioFormat;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import de.piegames.voicepi.audio.PcmEnergy.SampleDecoder;
+
+/**
+ * Detects speech by comparing the volume of each chunk to the current noise floor. Speech starts if the volume exceeds {@code start-threshold} times the
+ * noise floor and ends once it falls below {@code stop-threshold} times the noise floor. After the first pause of a command, {@code resume-threshold} is used
+ * instead of the start threshold. This is cheap, but easily triggered by loud non-speech noise.
+ */
+public class EnergyActivityDetector implements VoiceActivityDetector {
+
+	protected float				startThreshold, resumeThreshold, stopThreshold;
+	protected NoiseFloorTracker	noiseFloor;
+	protected SampleDecoder		decoder;
+	protected int				bytesPerSample;
+	protected boolean			speaking, spoken;
+
+	public EnergyActivityDetector(JsonObject config) {
+		startThreshold = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("start-threshold")).map(JsonPrimitive::getAsFloat).orElse(2f);
+		resumeThreshold = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("resume-threshold")).map(JsonPrimitive::getAsFloat).orElse(1.5f);
+		stopThreshold = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("stop-threshold")).map(JsonPrimitive::getAsFloat).orElse(0.8f);
+	}
+
+	@Override
+	public void reset(AudioFormat format, NoiseFloorTracker noiseFloor) {
+		decoder = PcmEnergy.decoderFor(format);
+		bytesPerSample = Math.max(1, format.getSampleSizeInBits() / 8);
+		this.noiseFloor = noiseFloor;
+		speaking = spoken = false;
+	}
+
+	@Override
+	public boolean isSpeech(byte[] data, int off, int len) {
+		if (len < 1)
+			return speaking;
+		float rms = (float) Math.sqrt(decoder.sumOfSquares(data, off, off + len) * bytesPerSample / len);
+		float average = noiseFloor.getNoiseFloor();
+		if (speaking) {
+			speaking = rms >= average * stopThreshold;
+		} else {
+			speaking = rms > average * (spoken ? resumeThreshold : startThreshold);
+			spoken |= speaking;
+		}
+		return speaking;
+	}
+}
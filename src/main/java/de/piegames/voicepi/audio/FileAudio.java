@@ -2,6 +2,7 @@ package de.piegames.voicepi.audio;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.Optional;
 import javax.sound.sampled.AudioFileFormat.Type;
@@ -16,22 +17,38 @@ public class FileAudio extends Audio {
 
 	protected File			inFile, outFile;
 	protected AudioFormat	format;
+	/** If set, WAV files will be memory mapped instead of being read through {@link AudioSystem} */
+	protected boolean		memoryMap;
+	/** The mapped input file, if {@link #memoryMap} is set and it is a supported WAV file */
+	protected WavFile		inWav;
 
 	public FileAudio(JsonObject config) {
 		super(config);
 		inFile = new File(Optional.ofNullable(config.getAsJsonPrimitive("in-file")).map(JsonPrimitive::getAsString).orElse("in.wav"));
 		outFile = Optional.ofNullable(config.getAsJsonPrimitive("out-file")).map(JsonPrimitive::getAsString).map(File::new).orElse(null);
+		memoryMap = Optional.ofNullable(config.getAsJsonPrimitive("memory-map")).map(JsonPrimitive::getAsBoolean).orElse(true);
 	}
 
 	public FileAudio(JsonObject config, File inFile, File outFile) {
 		super(config);
 		this.inFile = Objects.requireNonNull(inFile);
 		this.outFile = outFile;
+		memoryMap = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("memory-map")).map(JsonPrimitive::getAsBoolean).orElse(true);
 	}
 
 	@Override
 	public void init() throws IOException {
+		inWav = null;
 		try {
+			if (memoryMap) {
+				try {
+					inWav = WavFile.open(inFile);
+					format = inWav.getFormat();
+					return;
+				} catch (UnsupportedAudioFileException e) {
+					log.debug("Can't map " + inFile + ", reading it normally: " + e.getMessage());
+				}
+			}
 			format = AudioSystem.getAudioFileFormat(inFile).getFormat();
 		} catch (UnsupportedAudioFileException e) {
 			throw new IOException(e);
@@ -40,21 +57,14 @@ public class FileAudio extends Audio {
 
 	@Override
 	public AudioInputStream normalListening(AudioFormat targetFormat) throws IOException {
-		try {
-			return formatStream(AudioSystem.getAudioInputStream(inFile), targetFormat);
-		} catch (UnsupportedAudioFileException e) {
-			throw new IOException(e);
-		}
+		return formatStream(openInput(), targetFormat);
 	}
 
 	@Override
 	public CircularBufferInputStream normalListening2() throws IOException {
-		AudioInputStream ain;
-		try {
-			ain = AudioSystem.getAudioInputStream(inFile);
-		} catch (UnsupportedAudioFileException e) {
-			throw new IOException(e);
-		}
+		if (inWav != null)
+			return mappedListening(inWav.getData());
+		AudioInputStream ain = openInput();
 		CircularByteBuffer buffer = new CircularByteBuffer(getCommandBufferSize());
 		CircularBufferInputStream in = new CircularBufferInputStream(buffer) {
 
@@ -79,6 +89,34 @@ public class FileAudio extends Audio {
 		return in;
 	}
 
+	/** Like {@link #normalListening2()}, but takes the data directly from the mapped file instead of going through any streams */
+	protected CircularBufferInputStream mappedListening(ByteBuffer data) {
+		CircularByteBuffer buffer = new CircularByteBuffer(getCommandBufferSize());
+		return new CircularBufferInputStream(buffer) {
+
+			@Override
+			public int read(byte[] src, int off, int len) throws IOException {
+				if (buffer == null || !data.hasRemaining())
+					return -1;
+				len = Math.min(len, data.remaining());
+				data.get(src, off, len);
+				buffer.put(src, off, len);
+				buffer.skip(len);
+				return len;
+			}
+		};
+	}
+
+	protected AudioInputStream openInput() throws IOException {
+		if (inWav != null)
+			return inWav.getStream();
+		try {
+			return AudioSystem.getAudioInputStream(inFile);
+		} catch (UnsupportedAudioFileException e) {
+			throw new IOException(e);
+		}
+	}
+
 	@Override
 	public void play(AudioInputStream stream) throws IOException {
 		if (outFile != null)
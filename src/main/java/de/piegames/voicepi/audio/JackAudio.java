@@ -1,12 +1,8 @@
 package de.piegames.voicepi.audio;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
 import javax.sound.sampled.AudioInputStream;
@@ -23,6 +19,7 @@ import org.jaudiolibs.jnajack.JackProcessCallback;
 import org.jaudiolibs.jnajack.JackSampleRateCallback;
 import org.jaudiolibs.jnajack.JackStatus;
 import com.google.gson.JsonObject;
+import de.piegames.voicepi.audio.Playback.Category;
 
 /**
  * Implements the {@link Audio} class using the system's JackAudio interface (through JNAJack bindings). This will require Jack to be installed and a Jack
@@ -31,12 +28,15 @@ import com.google.gson.JsonObject;
  */
 public class JackAudio extends Audio implements JackProcessCallback, JackSampleRateCallback, JackBufferSizeCallback {
 
-	protected JackClient						client;
-	protected AudioFormat						format;
-	protected JackPort							out, in;
-	protected int								sampleRate, bufferSize;
-	protected LinkedList<AudioInputStream>		outQueue	= new LinkedList<>();
-	protected Queue<CircularBufferInputStream>	inQueue		= new LinkedList<>();
+	protected JackClient			client;
+	protected volatile AudioFormat	format;
+	protected JackPort				out, in;
+	protected int					sampleRate, bufferSize;
+	/** Mixes everything being played. It is replaced when the sample rate changes and only read by the process callback. */
+	protected volatile AudioMixer	mixer;
+
+	/* Statistics about the process callback, only written by the realtime thread */
+	protected volatile long			processCount, processTotalNanos, processMaxNanos;
 
 	public JackAudio(JsonObject config) {
 		super(config);
@@ -69,28 +69,21 @@ public class JackAudio extends Audio implements JackProcessCallback, JackSampleR
 			throw new IOException(e);
 		}
 		client.deactivate();
-		synchronized (outQueue) {
-			for (AudioInputStream in : outQueue)
-				in.close();
-			outQueue.clear();
-		}
-		synchronized (inQueue) {
-			for (CircularBufferInputStream in : inQueue) {
-				in.close();
-				synchronized (in) {
-					in.notifyAll();
-				}
-			}
-			inQueue.clear();
+		// All playing streams will be stopped
+		if (mixer != null) {
+			mixer.close();
+			log.debug("Mixer: " + mixer.getUnderruns() + " underruns");
 		}
+		log.debug("Jack process callback: " + processCount + " calls, average " + getAverageProcessTime() / 1000 + "us, maximum " + processMaxNanos / 1000
+				+ "us, budget " + (long) (bufferSize / 4 * 1e6 / sampleRate) + "us");
+		if (captureBuffer != null)
+			log.debug("Capture buffer: " + captureBuffer.describe());
+		super.close();
 	}
 
 	@Override
 	public AudioInputStream normalListening(AudioFormat targetEncoding) throws IOException {
-		CircularBufferInputStream in = new CircularBufferInputStream(new CircularByteBuffer(bufferSize * 128));
-		synchronized (inQueue) {
-			inQueue.add(in);
-		}
+		CircularBufferInputStream in = newCaptureStream(0);
 		AudioInputStream audio = new AudioInputStream(in, format, AudioSystem.NOT_SPECIFIED);
 		audio = formatStream(audio, targetEncoding);
 		return audio;
@@ -98,90 +91,63 @@ public class JackAudio extends Audio implements JackProcessCallback, JackSampleR
 
 	@Override
 	public CircularBufferInputStream normalListening2() throws IOException {
-		CircularBufferInputStream in = new CircularBufferInputStream(new CircularByteBuffer(getCommandBufferSize()));
-		synchronized (inQueue) {
-			inQueue.add(in);
-		}
-		return in;
+		return normalListening2(0);
 	}
 
 	@Override
-	public void play(AudioInputStream stream) {
-		stream = formatStream(stream, format);
-		synchronized (outQueue) {
-			outQueue.add(stream);
-		}
-		synchronized (stream) {
-			try {
-				stream.wait();
-			} catch (InterruptedException e) {
+	public CircularBufferInputStream normalListening2(float lookback) throws IOException {
+		return newCaptureStream(lookback);
+	}
 
-			}
-			System.out.println("Finished waiting " + stream);
-		}
-		synchronized (outQueue) {
-			outQueue.remove(stream);
-		}
+	@Override
+	public void play(AudioInputStream stream) throws IOException {
+		play(stream, Category.SOUND);
 	}
 
-	private byte[]		buffer;
-	private ByteBuffer	byteBuffer;
-	private FloatBuffer	floatBuffer;
+	@Override
+	public void play(AudioInputStream stream, Category category) throws IOException {
+		submit(stream, category, 1).await();
+	}
 
+	/** The stream gets converted to the Jack format in a background thread, so the realtime thread only has to mix ready float samples. */
+	@Override
+	public Playback submit(AudioInputStream stream, Category category, float gain) {
+		return mixer.play(stream, category, gain);
+	}
+
+	/* Preallocated buffers for the process callback, replaced when the buffer size changes */
+	private byte[]	inBytes;
+	private float[]	mixBus;
+
+	/** This runs in Jack's realtime thread. It must not block or allocate, so it only copies the recorded data and lets the mixer render the output. */
 	@Override
 	public boolean process(JackClient client, int samples) {
+		long start = System.nanoTime();
+		float[] mixBus = this.mixBus;
+		// The buffers have not been allocated yet
+		if (mixBus == null)
+			return true;
 		// Process in
-		synchronized (inQueue) {
-			ByteBuffer bb = in.getBuffer();
-			bb.get(buffer);
-			inQueue.removeIf(out -> {
-				CircularByteBuffer b = out.getBuffer();
-				if (b == null)
-					return true;
-				b.put(buffer);
-				return false;
-			});
+		CircularByteBuffer captureBuffer = this.captureBuffer;
+		if (captureBuffer != null) {
+			in.getBuffer().get(inBytes);
+			captureBuffer.write(inBytes);
+			noiseFloor.process(inBytes, 0, inBytes.length);
 		}
 		// Process out
-		synchronized (outQueue) {
-			if (!outQueue.isEmpty()) {
-				FloatBuffer outData = out.getFloatBuffer();
-				// TODO cache all buffers
-				for (int j = 0; j < outQueue.size(); j++) {
-					boolean first = j == 0;
-					AudioInputStream stream = outQueue.get(j);
-					try {
-						int read = stream.read(buffer, 0, samples * 4);
-						for (int i = 0; i < samples; i++) {
-							boolean done = i >= read / 4;
-							outData.put(i, (first ? 0 : outData.get(i)) + (done ? 0 : floatBuffer.get(i)));
-						}
-						if (read < samples * 4) {
-							stream.close();
-							synchronized (stream) {
-								System.out.println("Notify " + stream);
-								stream.notifyAll();
-							}
-						}
-					} catch (IOException e) {
-						log.warn("Could not play audio", e);
-						try {
-							stream.close();
-						} catch (IOException e1) {
-							log.warn("Could not even close the stream that could not play audio", e);
-						}
-						synchronized (stream) {
-							System.out.println("Notify " + stream);
-							stream.notifyAll();
-						}
-					}
-				}
-			} else {
-				// TODO only write this one time
-				// TODO don't create a float[]
-				out.getFloatBuffer().put(new float[samples]);
-			}
-		}
+		samples = Math.min(samples, mixBus.length);
+		AudioMixer mixer = this.mixer;
+		if (mixer != null)
+			mixer.mix(mixBus, samples);
+		else
+			Arrays.fill(mixBus, 0, samples, 0f);
+		out.getFloatBuffer().put(mixBus, 0, samples);
+
+		long duration = System.nanoTime() - start;
+		processCount++;
+		processTotalNanos += duration;
+		if (duration > processMaxNanos)
+			processMaxNanos = duration;
 		return true;
 	}
 
@@ -190,6 +156,19 @@ public class JackAudio extends Audio implements JackProcessCallback, JackSampleR
 		if (client == JackAudio.this.client) {
 			format = new AudioFormat(Encoding.PCM_FLOAT, sampleRate, 32, 1, 4, sampleRate, false);
 			this.sampleRate = sampleRate;
+			// All readers of the old buffer will get an EOF since their format is not valid anymore
+			CircularByteBuffer old = captureBuffer;
+			noiseFloor.setFormat(format);
+			CircularByteBuffer buffer = newCommandBuffer();
+			// Waking up readers from the process callback could make it miss its deadline, they poll instead
+			buffer.setSignaling(false);
+			captureBuffer = buffer;
+			if (old != null)
+				old.release();
+			AudioMixer oldMixer = mixer;
+			mixer = new AudioMixer(sampleRate, 1, duckGain, duckTime);
+			if (oldMixer != null)
+				oldMixer.close();
 			log.debug("Setting new audio format: " + format + " Buffer size: " + getCommandBufferSize());
 		}
 	}
@@ -199,10 +178,8 @@ public class JackAudio extends Audio implements JackProcessCallback, JackSampleR
 		if (client == JackAudio.this.client) {
 			bufferSize *= 4;
 			this.bufferSize = bufferSize;
-			buffer = new byte[bufferSize];
-			byteBuffer = ByteBuffer.wrap(buffer);
-			byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			floatBuffer = byteBuffer.asFloatBuffer();
+			inBytes = new byte[bufferSize];
+			mixBus = new float[bufferSize / 4];
 		}
 	}
 
@@ -210,4 +187,21 @@ public class JackAudio extends Audio implements JackProcessCallback, JackSampleR
 	public AudioFormat getListeningFormat() {
 		return format;
 	}
+
+	/** The mixer works directly in Jack's format */
+	@Override
+	public AudioFormat getOutputFormat() {
+		return format;
+	}
+
+	/** The average time the process callback took in nanoseconds. Compare it to the buffer size divided by the sample rate. */
+	public long getAverageProcessTime() {
+		long count = processCount;
+		return count == 0 ? 0 : processTotalNanos / count;
+	}
+
+	/** The longest time the process callback took in nanoseconds */
+	public long getMaxProcessTime() {
+		return processMaxNanos;
+	}
 }
@@ -0,0 +1,96 @@
+package de.piegames.voicepi.audio;
+
+import javax.sound.sampled.AudioFormat;
+import de.piegames.voicepi.audio.PcmEnergy.SampleDecoder;
+
+/**
+ * Continuously estimates the volume of the background noise. Implementations of {@link Audio} feed every chunk they capture into this, so the estimate follows
+ * the room's noise in real time and nobody has to stop listening to calibrate.<br/>
+ * The noise floor is an exponential moving percentile of the chunks' levels in dB: each chunk moves the estimate a small step up or down, depending on which
+ * side of it the chunk lies. Chunks more than {@code gate} dB above the estimate are considered speech and barely move it, so that talking does not raise the
+ * floor but a machine that started running will eventually be learned. Until {@code warmup} seconds of audio have been seen, the estimate is the plain average
+ * of all chunks.<br/>
+ * This is written by one thread (the capture thread) and may be read by any. Processing does not allocate and does not block.
+ */
+public class NoiseFloorTracker {
+
+	protected final float		warmup, percentile, adaptation, gate;
+
+	protected AudioFormat		format;
+	protected SampleDecoder		decoder;
+	protected int				bytesPerSample, frameSize;
+	protected long				warmupFrames, frames;
+	protected double			warmupSum;
+	/** The current estimate in dB */
+	protected float				level;
+	protected volatile float	noiseFloor	= 1;
+	protected volatile boolean	calibrated;
+
+	/**
+	 * @param warmup the amount of audio in seconds to average before the floor is considered calibrated
+	 * @param percentile which percentile of the levels of quiet chunks to track, between 0 and 1
+	 * @param adaptation how fast the estimate may change in dB per second
+	 * @param gate chunks more than this many dB above the floor are treated as speech
+	 */
+	public NoiseFloorTracker(float warmup, float percentile, float adaptation, float gate) {
+		this.warmup = warmup;
+		this.percentile = Math.max(0.01f, Math.min(0.99f, percentile));
+		this.adaptation = adaptation;
+		this.gate = gate;
+	}
+
+	/**
+	 * Sets the format of all following audio. If it differs from the previous one, the estimate starts over. This must be called by the thread that processes
+	 * the audio, or before that thread starts.
+	 */
+	public void setFormat(AudioFormat format) {
+		if (this.format != null && format.matches(this.format))
+			return;
+		this.format = format;
+		decoder = PcmEnergy.decoderFor(format);
+		bytesPerSample = Math.max(1, format.getSampleSizeInBits() / 8);
+		frameSize = Math.max(1, format.getFrameSize());
+		warmupFrames = (long) (warmup * format.getFrameRate());
+		frames = 0;
+		warmupSum = 0;
+		calibrated = false;
+	}
+
+	/** Updates the estimate with a chunk of audio in the format previously set. Does nothing if no format has been set yet. */
+	public void process(byte[] data, int off, int len) {
+		if (decoder == null || len < frameSize)
+			return;
+		float rms = (float) Math.sqrt(decoder.sumOfSquares(data, off, off + len) * bytesPerSample / len);
+		process(rms, len / frameSize);
+	}
+
+	/** Updates the estimate with a chunk of audio with the given volume and length */
+	public void process(float rms, int chunkFrames) {
+		float chunkLevel = (float) (20 * Math.log10(rms + 1e-9));
+		frames += chunkFrames;
+		if (!calibrated) {
+			warmupSum += chunkLevel * chunkFrames;
+			level = (float) (warmupSum / frames);
+			calibrated = frames >= warmupFrames;
+		} else {
+			float step = adaptation * chunkFrames / format.getFrameRate();
+			if (chunkLevel > level + gate)
+				level += step * percentile * 0.05f;
+			else if (chunkLevel > level)
+				level += step * percentile;
+			else
+				level -= step * (1 - percentile);
+		}
+		noiseFloor = (float) Math.pow(10, level / 20);
+	}
+
+	/** The current estimate of the background noise's volume (RMS) */
+	public float getNoiseFloor() {
+		return noiseFloor;
+	}
+
+	/** Returns {@code true} once enough audio has been processed for the estimate to be meaningful */
+	public boolean isCalibrated() {
+		return calibrated;
+	}
+}
@@ -0,0 +1,110 @@
+package de.piegames.voicepi.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+
+/**
+ * Computes the energy of raw PCM samples. The samples are read through {@link ByteBuffer} views using absolute accesses in the buffer's byte order, which the
+ * JIT compiles to plain (and on little endian machines usually unswapped) loads. The loops are unrolled with independent accumulators, so that each addition
+ * doesn't have to wait for the previous one and the CPU can overlap them. This is only instruction level parallelism, HotSpot does not vectorize floating
+ * point reductions.
+ */
+public final class PcmEnergy {
+
+	private PcmEnergy() {
+	}
+
+	/** Sums up the squares of all normalized samples in {@code b} from index {@code from} (inclusive) to {@code to} (exclusive) */
+	@FunctionalInterface
+	public static interface SampleDecoder {
+		public float sumOfSquares(byte[] b, int from, int to);
+	}
+
+	/**
+	 * Chooses the decoder for the given format once, instead of checking encoding and byte order on every read. Decoding this live is way more performant than
+	 * to require a fixed format and format the whole stream by the system. Formats that are not supported are decoded as silence.
+	 */
+	public static SampleDecoder decoderFor(AudioFormat format) {
+		Encoding encoding = format.getEncoding();
+		ByteOrder order = format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		if (encoding == Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16)
+			return new ViewDecoder(order, PcmEnergy::sumOfSquares16);
+		if (encoding == Encoding.PCM_FLOAT && format.getSampleSizeInBits() == 32)
+			return new ViewDecoder(order, PcmEnergy::sumOfSquaresFloat);
+		return (b, from, to) -> 0;
+	}
+
+	/**
+	 * Decodes the samples through a {@link ByteBuffer} view on the array. The view is cached, so as long as the same array is passed in every time no
+	 * allocation happens.
+	 */
+	private static class ViewDecoder implements SampleDecoder {
+
+		@FunctionalInterface
+		private static interface Kernel {
+			public float sumOfSquares(ByteBuffer data, int from, int to);
+		}
+
+		private final ByteOrder	order;
+		private final Kernel	kernel;
+		private byte[]			array;
+		private ByteBuffer		view;
+
+		public ViewDecoder(ByteOrder order, Kernel kernel) {
+			this.order = order;
+			this.kernel = kernel;
+		}
+
+		@Override
+		public float sumOfSquares(byte[] b, int from, int to) {
+			if (b != array) {
+				array = b;
+				view = ByteBuffer.wrap(b).order(order);
+			}
+			return kernel.sumOfSquares(view, from, to);
+		}
+	}
+
+	/**
+	 * Sums up the squares of all 16 bit signed samples in {@code data} from byte index {@code from} (inclusive) to {@code to} (exclusive), normalized to
+	 * {@code [-1, 1]}. Trailing bytes that don't form a whole sample are ignored.<br/>
+	 * The squares are summed up as integers, which is exact and several times faster than converting every sample to float first.
+	 */
+	public static float sumOfSquares16(ByteBuffer data, int from, int to) {
+		long s0 = 0, s1 = 0;
+		int i = from;
+		for (; i <= to - 4; i += 4) {
+			int a = data.getShort(i), b = data.getShort(i + 2);
+			s0 += a * a;
+			s1 += b * b;
+		}
+		for (; i <= to - 2; i += 2) {
+			int a = data.getShort(i);
+			s0 += a * a;
+		}
+		return (s0 + s1) / (32768f * 32768f);
+	}
+
+	/**
+	 * Sums up the squares of all 32 bit float samples in {@code data} from byte index {@code from} (inclusive) to {@code to} (exclusive). Trailing bytes that
+	 * don't form a whole sample are ignored.
+	 */
+	public static float sumOfSquaresFloat(ByteBuffer data, int from, int to) {
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = from;
+		for (; i <= to - 16; i += 16) {
+			float a = data.getFloat(i), b = data.getFloat(i + 4), c = data.getFloat(i + 8), d = data.getFloat(i + 12);
+			s0 += a * a;
+			s1 += b * b;
+			s2 += c * c;
+			s3 += d * d;
+		}
+		for (; i <= to - 4; i += 4) {
+			float a = data.getFloat(i);
+			s0 += a * a;
+		}
+		return s0 + s1 + s2 + s3;
+	}
+}
@@ -0,0 +1,33 @@
+package de.piegames.voicepi.audio;
+
+import java.io.IOException;
+
+/** A handle on audio that has been submitted for playing, see {@link Audio#submit(javax.sound.sampled.AudioInputStream, Category, float)}. */
+public interface Playback {
+
+	/** What kind of audio is played. This decides how it gets mixed with other audio playing at the same time. */
+	public static enum Category {
+		/** Spoken text. It will be ducked while an alert is playing. */
+		SPEECH,
+		/** Any other audio, mixed as it is */
+		SOUND,
+		/** Short notification sounds that must be heard. All speech will be ducked while they play. */
+		ALERT;
+	}
+
+	/**
+	 * Waits until the audio has finished playing. If the current thread is interrupted while waiting, playing will be stopped and this returns as soon as
+	 * possible.
+	 *
+	 * @throws IOException if the audio could not be read or played
+	 */
+	public void await() throws IOException;
+
+	/** Stops playing. Does nothing if it has already finished. */
+	public void stop();
+
+	public boolean isDone();
+
+	/** Changes the volume of this audio while it is playing. 1 is the original volume. Implementations may ignore this. */
+	public void setGain(float gain);
+}
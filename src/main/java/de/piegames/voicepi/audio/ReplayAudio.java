@@ -0,0 +1,155 @@
+package de.piegames.voicepi.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Plays back a recording as if it was captured live. Unlike {@link FileAudio}, which starts from the beginning for every listener, the file is streamed only
+ * once through a capture buffer, so consecutive commands are found one after another just like with a microphone.<br/>
+ * Time is virtual: audio is only taken from the file when a listener needs more of it, so the recording is processed as fast as the listeners can handle it.
+ * Set {@code speed} to limit this to a multiple of real time. Once the end has been reached, all listeners will get an EOF.
+ */
+public class ReplayAudio extends FileAudio {
+
+	/** How fast the file is played compared to real time. Zero or less means as fast as possible. */
+	protected float					speed;
+	protected AudioInputStream		source;
+	protected byte[]				chunk;
+	/** How many bytes have been taken from the file */
+	protected long					replayed;
+	protected long					startNanos;
+	/** Set when the file has been read completely, and when a listener reached its end */
+	protected volatile boolean		ended, drained;
+
+	public ReplayAudio(JsonObject config) {
+		super(config);
+		speed = Optional.ofNullable(config.getAsJsonPrimitive("speed")).map(JsonPrimitive::getAsFloat).orElse(0f);
+	}
+
+	public ReplayAudio(JsonObject config, File inFile, float speed) {
+		super(config, inFile, null);
+		this.speed = speed;
+	}
+
+	@Override
+	public synchronized void init() throws IOException {
+		super.init();
+		if (source != null)
+			source.close();
+		source = openInput();
+		captureBuffer = newCommandBuffer();
+		noiseFloor.setFormat(format);
+		// About 20ms per chunk, like a sound card would deliver it
+		chunk = new byte[Math.max(secondsToBytes(format, 0.02f), format.getFrameSize())];
+		replayed = 0;
+		startNanos = System.nanoTime();
+		ended = drained = false;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (source != null)
+			source.close();
+		source = null;
+		super.close();
+	}
+
+	@Override
+	public AudioInputStream normalListening(AudioFormat targetFormat) throws IOException {
+		return formatStream(new AudioInputStream(normalListening2(), format, AudioSystem.NOT_SPECIFIED), targetFormat);
+	}
+
+	@Override
+	public CircularBufferInputStream normalListening2() throws IOException {
+		return normalListening2(0);
+	}
+
+	@Override
+	public CircularBufferInputStream normalListening2(float lookback) throws IOException {
+		if (ended)
+			drained = true;
+		return newCaptureStream(lookback);
+	}
+
+	/** Returns a stream that pulls the next chunk from the file whenever its reader has caught up with the capture buffer */
+	@Override
+	protected CircularBufferInputStream newCaptureStream(float lookback) throws IOException {
+		CircularByteBuffer buffer = captureBuffer;
+		if (buffer == null)
+			throw new IOException("Audio has not been initialized");
+		return new CircularBufferInputStream(buffer.newReader(secondsToBytes(format, lookback)), false) {
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read;
+				while ((read = super.read(b, off, len)) == 0 && len > 0)
+					if (!advance()) {
+						if (ended)
+							drained = true;
+						return -1;
+					}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Takes the next chunk from the file and writes it to the capture buffer, as the capture thread of a live implementation would. Waits first if this would
+	 * be faster than {@link #speed} allows.
+	 *
+	 * @return {@code false} if the end of the file has been reached
+	 */
+	protected synchronized boolean advance() throws IOException {
+		if (source == null || ended)
+			return false;
+		if (speed > 0) {
+			long due = startNanos + (long) (replayed / (format.getFrameSize() * format.getFrameRate()) / speed * 1e9);
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		int read = source.read(chunk);
+		if (read <= 0) {
+			ended = true;
+			captureBuffer.close();
+			return false;
+		}
+		read -= read % format.getFrameSize();
+		captureBuffer.write(chunk, 0, read);
+		noiseFloor.process(chunk, 0, read);
+		replayed += read;
+		return true;
+	}
+
+	/** How much of the file has been replayed so far, in seconds of audio */
+	public float getPosition() {
+		return replayed / (format.getFrameSize() * format.getFrameRate());
+	}
+
+	/**
+	 * Returns {@code true} once the whole file has been read and a listener got to its end, or asked for more audio afterwards. The listener may still be
+	 * processing the last part, so stop it before collecting its results.
+	 */
+	public boolean isDrained() {
+		return drained;
+	}
+}
@@ -0,0 +1,145 @@
+package de.piegames.voicepi.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps sound files decoded in memory, so that short feedback sounds can start playing without touching the disk or parsing the file again. Every file is
+ * stored once, already converted to the format the audio output wants (see {@link Audio#getOutputFormat()}), in a direct buffer. WAV files that already are in
+ * that format are copied straight from their {@link WavFile mapping}, the cache never keeps the mapping itself since the files may be edited while VoicePi
+ * runs. An entry is replaced if the file has been modified since it was loaded.<br/>
+ * Components playing sounds {@link #register(File) register} them when they are loaded, and {@link #preload(AudioFormat)} decodes all of them at once.
+ */
+public class SoundCache {
+
+	/** The cache shared by the whole application */
+	public static final SoundCache		SHARED		= new SoundCache();
+
+	protected final Log					log			= LogFactory.getLog(getClass());
+	protected final Map<String, Entry>	entries		= new ConcurrentHashMap<>();
+	protected final Set<File>			registered	= ConcurrentHashMap.newKeySet();
+	protected volatile Set<File>		recording;
+
+	/** Marks a file to be loaded on the next {@link #preload(AudioFormat)} */
+	public void register(File file) {
+		file = file.getAbsoluteFile();
+		registered.add(file);
+		Set<File> recording = this.recording;
+		if (recording != null)
+			recording.add(file);
+	}
+
+	/** Forgets all registered files, for example before reloading the configuration */
+	public void clearRegistered() {
+		registered.clear();
+	}
+
+	/**
+	 * Remembers every file registered from now on until {@link #stopRecording()}, even if it was registered already. This tells which sounds a component
+	 * registers while it is being loaded.
+	 */
+	public void startRecording() {
+		recording = ConcurrentHashMap.newKeySet();
+	}
+
+	/** Returns all files registered since {@link #startRecording()} */
+	public Set<File> stopRecording() {
+		Set<File> recording = this.recording;
+		this.recording = null;
+		return recording == null ? Collections.emptySet() : recording;
+	}
+
+	public Collection<File> getRegistered() {
+		return registered;
+	}
+
+	/**
+	 * Loads all registered files in the given format and drops all cached files that are not registered anymore. Files that can't be loaded are skipped with a
+	 * warning.
+	 *
+	 * @param format the format to store the sounds in, or {@code null} to keep them in the format they are stored in
+	 */
+	public void preload(AudioFormat format) {
+		entries.keySet().removeIf(path -> !registered.contains(new File(path)));
+		for (File file : registered) {
+			try {
+				load(file, format);
+			} catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+				log.warn("Could not preload sound " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns a new stream on the decoded content of the file. It will be loaded first if it is not cached yet, has been modified or was cached in another
+	 * format.
+	 *
+	 * @param format the format of the returned stream, or {@code null} to keep the file's format
+	 */
+	public AudioInputStream open(File file, AudioFormat format) throws IOException, UnsupportedAudioFileException {
+		Entry entry = load(file, format);
+		ByteBuffer data = entry.data.duplicate();
+		return new AudioInputStream(new ByteBufferInputStream(data), entry.format, data.remaining() / entry.format.getFrameSize());
+	}
+
+	protected Entry load(File file, AudioFormat format) throws IOException, UnsupportedAudioFileException {
+		file = file.getAbsoluteFile();
+		long modified = file.lastModified();
+		Entry entry = entries.get(file.getPath());
+		if (entry != null && entry.modified == modified && (format == null ? entry.original : entry.format.matches(format)))
+			return entry;
+		WavFile wav = null;
+		try {
+			wav = WavFile.open(file);
+		} catch (UnsupportedAudioFileException e) {
+			// Let Java figure out what this is
+		}
+		if (wav != null && (format == null || wav.getFormat().matches(format))) {
+			// Nothing to convert, but copy the data so that editing the file can't change or invalidate the cached sound
+			ByteBuffer mapped = wav.getData();
+			ByteBuffer data = ByteBuffer.allocateDirect(mapped.remaining());
+			data.put(mapped).flip();
+			entry = new Entry(wav.getFormat(), data, modified, true);
+		} else {
+			try (AudioInputStream in = wav != null ? wav.getStream() : AudioSystem.getAudioInputStream(file)) {
+				AudioInputStream converted = format == null ? in : Audio.formatStream(in, format);
+				byte[] bytes = Audio.readAllBytes(converted);
+				ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+				data.put(bytes).flip();
+				entry = new Entry(converted.getFormat(), data, modified, format == null);
+			}
+		}
+		entries.put(file.getPath(), entry);
+		log.debug("Cached sound " + file + " (" + entry.data.capacity() + " bytes)");
+		return entry;
+	}
+
+	protected static class Entry {
+
+		protected final AudioFormat	format;
+		protected final ByteBuffer	data;
+		protected final long		modified;
+		/** If the data is in the file's own format */
+		protected final boolean		original;
+
+		protected Entry(AudioFormat format, ByteBuffer data, long modified, boolean original) {
+			this.format = Objects.requireNonNull(format);
+			this.data = Objects.requireNonNull(data);
+			this.modified = modified;
+			this.original = original;
+		}
+	}
+}
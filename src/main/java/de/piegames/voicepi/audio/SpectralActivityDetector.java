@@ -0,0 +1,215 @@
+package de.piegames.voicepi.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Detects speech similar to the WebRTC voice activity detector. The audio is split into frames of 10-30ms, the energy of each frame is measured in six
+ * frequency bands covering the range of human speech. Each band has a Gaussian model of the background noise that adapts continuously, and a speech model
+ * lying {@code speech-offset} dB above it. A frame contains speech if the summed log-likelihood ratio of all bands exceeds {@code threshold}. Frames with a
+ * zero-crossing rate above {@code max-zero-crossing-rate} are too noise-like to be speech. Speech is held for {@code hangover} seconds to bridge short gaps.
+ * <br/>
+ * Unlike the {@link EnergyActivityDetector}, this is not fooled by stationary loud noise like machines or fans, since their spectrum is learned as noise.
+ * Only 16 bit signed and 32 bit float PCM audio is supported. Of multi channel audio, only the first channel is analyzed.
+ */
+public class SpectralActivityDetector implements VoiceActivityDetector {
+
+	/** The edges of the frequency bands in Hz */
+	protected static final float[]	BANDS	= { 80, 250, 500, 1000, 2000, 3000, 4000 };
+	/** Maximum log-likelihood ratio a single band may contribute, so that a loud narrow-band noise alone can't trigger */
+	protected static final float	MAX_LLR	= 10;
+
+	protected float					frameLength, threshold, speechOffset, maxZeroCrossingRate, hangover;
+	/** How fast the noise model adapts during non-speech frames, if the noise gets quieter and during speech frames */
+	protected float					adaptNoise	= 0.05f, adaptDown = 0.2f, adaptSpeech = 0.002f;
+
+	protected AudioFormat			format;
+	protected ByteBuffer			view;
+	protected byte[]				array;
+	protected boolean				isFloat;
+	protected int					frameSize;
+
+	/* Per frame working memory, allocated once per format */
+	protected float[]				frame, window, re, im;
+	protected int					fill;
+	protected int[]					bandStart, bandEnd;
+	protected float[]				bandEnergy, noiseMean, noiseVar;
+	protected boolean				initialized;
+	protected int					hangoverFrames, hangoverLeft;
+	protected boolean				speaking;
+
+	public SpectralActivityDetector(JsonObject config) {
+		frameLength = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("frame-length")).map(JsonPrimitive::getAsFloat).orElse(0.02f);
+		threshold = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("threshold")).map(JsonPrimitive::getAsFloat).orElse(3f);
+		speechOffset = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("speech-offset")).map(JsonPrimitive::getAsFloat).orElse(12f);
+		maxZeroCrossingRate = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("max-zero-crossing-rate")).map(JsonPrimitive::getAsFloat).orElse(0.45f);
+		hangover = Optional.ofNullable(config).map(c -> c.getAsJsonPrimitive("hangover")).map(JsonPrimitive::getAsFloat).orElse(0.1f);
+		frameLength = Math.max(0.01f, Math.min(0.03f, frameLength));
+	}
+
+	/** Allocates everything for the new format. If the format did not change, the learned noise model will be kept. */
+	@Override
+	public void reset(AudioFormat format, NoiseFloorTracker noiseFloor) {
+		if (this.format == null || !format.matches(this.format)) {
+			if (format.getEncoding() == Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16)
+				isFloat = false;
+			else if (format.getEncoding() == Encoding.PCM_FLOAT && format.getSampleSizeInBits() == 32)
+				isFloat = true;
+			else
+				throw new IllegalArgumentException("Unsupported audio format for spectral voice activity detection: " + format);
+			this.format = format;
+			frameSize = format.getFrameSize();
+			array = null;
+
+			int length = Math.max(1, (int) (format.getSampleRate() * frameLength));
+			int fftSize = Integer.highestOneBit(length);
+			if (fftSize < length)
+				fftSize <<= 1;
+			frame = new float[length];
+			window = new float[length];
+			for (int i = 0; i < length; i++)
+				window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / length));
+			re = new float[fftSize];
+			im = new float[fftSize];
+
+			float binWidth = format.getSampleRate() / fftSize;
+			int bands = 0;
+			while (bands < BANDS.length - 1 && BANDS[bands + 1] <= format.getSampleRate() / 2)
+				bands++;
+			bandStart = new int[bands];
+			bandEnd = new int[bands];
+			for (int i = 0; i < bands; i++) {
+				bandStart[i] = Math.max(1, Math.round(BANDS[i] / binWidth));
+				bandEnd[i] = Math.max(bandStart[i] + 1, Math.round(BANDS[i + 1] / binWidth));
+			}
+			bandEnergy = new float[bands];
+			noiseMean = new float[bands];
+			noiseVar = new float[bands];
+			hangoverFrames = Math.round(hangover / frameLength);
+			initialized = false;
+		}
+		fill = 0;
+		hangoverLeft = 0;
+		speaking = false;
+	}
+
+	@Override
+	public boolean isSpeech(byte[] data, int off, int len) {
+		if (data != array) {
+			array = data;
+			view = ByteBuffer.wrap(data).order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		}
+		for (int i = off; i <= off + len - frameSize; i += frameSize) {
+			frame[fill++] = isFloat ? view.getFloat(i) : view.getShort(i) / 32768f;
+			if (fill == frame.length) {
+				fill = 0;
+				processFrame();
+			}
+		}
+		return speaking;
+	}
+
+	/** Classifies the frame that has just been filled and updates the noise model */
+	protected void processFrame() {
+		int crossings = 0;
+		for (int i = 1; i < frame.length; i++)
+			if ((frame[i - 1] < 0) != (frame[i] < 0))
+				crossings++;
+		float zeroCrossingRate = (float) crossings / frame.length;
+
+		for (int i = 0; i < frame.length; i++) {
+			re[i] = frame[i] * window[i];
+			im[i] = 0;
+		}
+		for (int i = frame.length; i < re.length; i++)
+			re[i] = im[i] = 0;
+		fft(re, im);
+		for (int b = 0; b < bandEnergy.length; b++) {
+			double power = 0;
+			for (int k = bandStart[b]; k < bandEnd[b]; k++)
+				power += re[k] * re[k] + im[k] * im[k];
+			bandEnergy[b] = (float) (10 * Math.log10(power / (bandEnd[b] - bandStart[b]) + 1e-10));
+		}
+
+		if (!initialized) {
+			// Assume the audio starts with noise
+			for (int b = 0; b < bandEnergy.length; b++) {
+				noiseMean[b] = bandEnergy[b];
+				noiseVar[b] = 9;
+			}
+			initialized = true;
+		}
+
+		float llr = 0;
+		for (int b = 0; b < bandEnergy.length; b++) {
+			float x = bandEnergy[b];
+			float noiseDev = x - noiseMean[b], speechDev = x - noiseMean[b] - speechOffset;
+			// The speech model has four times the variance of the noise
+			float speechVar = noiseVar[b] * 4;
+			float bandLlr = (float) (0.5 * Math.log(noiseVar[b] / speechVar)) - speechDev * speechDev / (2 * speechVar) + noiseDev * noiseDev / (2 * noiseVar[b]);
+			// Speech does not need to be present in all bands, so a band at noise level is no evidence against it
+			llr += Math.max(0, Math.min(MAX_LLR, bandLlr));
+		}
+		boolean speech = llr > threshold && zeroCrossingRate <= maxZeroCrossingRate;
+
+		if (speech) {
+			speaking = true;
+			hangoverLeft = hangoverFrames;
+		} else if (hangoverLeft > 0) {
+			hangoverLeft--;
+		} else {
+			speaking = false;
+		}
+
+		for (int b = 0; b < bandEnergy.length; b++) {
+			float dev = bandEnergy[b] - noiseMean[b];
+			// Slowly learn persistent noise even while speaking, so a machine that started running won't trigger forever
+			float rate = speaking ? adaptSpeech : dev < 0 ? adaptDown : adaptNoise;
+			noiseMean[b] += rate * dev;
+			noiseVar[b] = Math.max(1, Math.min(100, noiseVar[b] + rate * (dev * dev - noiseVar[b])));
+		}
+	}
+
+	/** An in-place iterative radix-2 FFT. The length of the arrays must be a power of two. */
+	protected static void fft(float[] re, float[] im) {
+		int n = re.length;
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				float t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = -2 * Math.PI / len;
+			float wRe = (float) Math.cos(angle), wIm = (float) Math.sin(angle);
+			for (int i = 0; i < n; i += len) {
+				float curRe = 1, curIm = 0;
+				for (int j = 0; j < len / 2; j++) {
+					int a = i + j, b = i + j + len / 2;
+					float tRe = re[b] * curRe - im[b] * curIm;
+					float tIm = re[b] * curIm + im[b] * curRe;
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+					float nextRe = curRe * wRe - curIm * wIm;
+					curIm = curRe * wIm + curIm * wRe;
+					curRe = nextRe;
+				}
+			}
+		}
+	}
+}
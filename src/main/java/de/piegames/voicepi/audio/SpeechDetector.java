@@ -0,0 +1,185 @@
+package de.piegames.voicepi.audio;
+
+import java.util.Objects;
+import javax.sound.sampled.AudioFormat;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+
+/**
+ * Finds a spoken command in a stream of audio. Which parts of the audio contain speech is decided by a {@link VoiceActivityDetector}, this class keeps track of
+ * the timing: it waits for speech to start, ignores utterances that are too short, and considers a command finished after a long enough pause.<br/>
+ * The detector decides per chunk, so the {@link #getSpeechStart() start} and {@link #getSpeechEnd() end} of the speech are exact stream positions, but only
+ * as fine as the chunks passed to {@link #process(byte[], int, int, long)}. {@link Audio#recordCommand(CommandListener)} passes 1024 bytes at a time (32ms
+ * of 16kHz 16 bit mono audio) from the thread that records the command. The pre- and post-roll added around the command are much longer than that, so no
+ * speech gets cut off.
+ */
+public class SpeechDetector {
+
+	static enum State {
+		QUIET, TOO_SHORT, TIMEOUT, SPEAKING, STARTED_SPEAKING, PAUSED_SPEAKING;
+	}
+
+	/** All times are measured in audio frames, so the decisions don't depend on how fast the audio is being processed */
+	protected long								minTime, timeoutTime, pauseTime, maxCommandTime;
+	protected final float						frameRate;
+	// protected State state;
+	private final ReadOnlyObjectWrapper<State>	writableState	= new ReadOnlyObjectWrapper<>();
+	public final ReadOnlyObjectProperty<State>	state			= writableState.getReadOnlyProperty();
+	/** The amount of frames processed so far and the position when the current state was entered */
+	protected long								position, timer;
+	/** The stream positions of the first byte of the first speech chunk and the end of the last speech chunk, or -1 */
+	protected long								speechStart	= -1, speechEnd = -1;
+	protected final VoiceActivityDetector		vad;
+	protected final int							frameSize;
+
+	/**
+	 * @param vad decides which chunks contain speech. It will be {@link VoiceActivityDetector#reset(AudioFormat, NoiseFloorTracker) reset} for the new command
+	 * @param noiseFloor the volume of the background noise, passed to the detector
+	 * @param format the format of the audio that will be processed, its frame rate is used to convert the times
+	 * @param minTime the minimum length of a command in seconds
+	 * @param timeoutTime the time in seconds to wait for a command before giving up
+	 * @param pauseTime the time of silence in seconds after which a command is considered finished
+	 * @param maxCommandTime the maximum length of a command in seconds
+	 */
+	public SpeechDetector(VoiceActivityDetector vad, NoiseFloorTracker noiseFloor, AudioFormat format, float minTime, float timeoutTime, float pauseTime, float maxCommandTime) {
+		this.vad = Objects.requireNonNull(vad);
+		this.frameRate = format.getFrameRate();
+		this.frameSize = Math.max(1, format.getFrameSize());
+		this.minTime = toFrames(minTime);
+		this.timeoutTime = toFrames(timeoutTime);
+		this.pauseTime = toFrames(pauseTime);
+		this.maxCommandTime = toFrames(maxCommandTime);
+		writableState.set(State.QUIET);
+		position = timer = 0;
+		vad.reset(format, noiseFloor);
+	}
+
+	/** Processes a chunk of audio data in the format given at construction. The chunk must consist of whole frames. */
+	public void process(byte[] data, int off, int len) {
+		process(data, off, len, position * frameSize);
+	}
+
+	/**
+	 * Processes a chunk of audio data in the format given at construction. The chunk must consist of whole frames.
+	 *
+	 * @param streamPosition the position of the chunk's first byte in the audio stream. This is used to report where the speech started and ended, and may
+	 *            skip ahead if the caller lost some audio.
+	 */
+	public void process(byte[] data, int off, int len, long streamPosition) {
+		boolean speech = vad.isSpeech(data, off, len);
+		State before = writableState.get();
+		onSpeech(speech, len / frameSize);
+		State after = writableState.get();
+		if (before == State.QUIET && after == State.STARTED_SPEAKING)
+			speechStart = streamPosition;
+		if (speech && after != State.TOO_SHORT && (before != State.QUIET || after == State.STARTED_SPEAKING))
+			speechEnd = streamPosition + len;
+	}
+
+	/** Advances the time by {@code frames} and updates the state depending on whether those frames contain speech */
+	public void onSpeech(boolean speech, int frames) {
+		position += frames;
+		onSample(speech);
+	}
+
+	protected void onSample(boolean speech) {
+		long currentTime = position;
+		switch (writableState.get()) {
+			case QUIET:
+				if (speech) {
+					System.out.println("Speaking");
+					writableState.set(State.STARTED_SPEAKING);
+					timer = currentTime;
+				} else if (currentTime - timer > timeoutTime) {
+					System.out.println("Timeout");
+					writableState.set(State.TIMEOUT);
+				}
+				break;
+			case TIMEOUT:
+			case TOO_SHORT:
+				break;
+			case STARTED_SPEAKING:
+				if (currentTime - timer < minTime) {
+					if (!speech) {
+						writableState.set(State.TOO_SHORT);
+						System.out.println("Command too short: " + toSeconds(currentTime - timer) + ", expecting " + toSeconds(minTime));
+					}
+				} else {
+					System.out.println("Now we're talking");
+					writableState.set(State.SPEAKING);
+				}
+				break;
+			case SPEAKING:
+				if (!speech) {
+					writableState.set(State.PAUSED_SPEAKING);
+					timer = currentTime;
+					System.out.println("Stopped speaking");
+				}
+				if (currentTime - timer > maxCommandTime) {
+					writableState.set(State.QUIET);
+					System.out.println("Max command length reached");
+				}
+				break;
+			case PAUSED_SPEAKING:
+				if (currentTime - timer > pauseTime) {
+					writableState.set(State.QUIET);
+					System.out.println("Silence##############################################");
+					break;
+				}
+				if (speech) {
+					System.out.println("Continued speaking. Silence before: " + toSeconds(currentTime - timer) + "s");
+					writableState.set(State.SPEAKING);
+					timer = currentTime;
+				}
+				break;
+		}
+	}
+
+	/** The amount of frames processed so far */
+	public long getPosition() {
+		return position;
+	}
+
+	protected long toFrames(float seconds) {
+		return (long) (seconds * frameRate);
+	}
+
+	protected float toSeconds(long frames) {
+		return frames / frameRate;
+	}
+
+	public void startSpeaking() {
+		writableState.set(State.SPEAKING);
+	}
+
+	public boolean isSpeaking() {
+		return writableState.get() != State.QUIET;
+	}
+
+	public State getState() {
+		return writableState.get();
+	}
+
+	/** The stream position where the command started, including the whole first chunk that contained speech. -1 if nobody spoke yet. */
+	public long getSpeechStart() {
+		return speechStart;
+	}
+
+	/**
+	 * The stream position where the command ended, including the whole last chunk that contained speech. The pause after the command is not part of it. -1 if
+	 * nobody spoke yet.
+	 */
+	public long getSpeechEnd() {
+		return speechEnd;
+	}
+
+	/** Returns {@code true} once a command has been found or the search has been {@link #aborted()}. No more audio needs to be processed then. */
+	public boolean isDone() {
+		State state = writableState.get();
+		return aborted() || (state == State.QUIET && speechStart >= 0);
+	}
+
+	public boolean aborted() {
+		return state.get() == State.TIMEOUT || state.get() == State.TOO_SHORT;
+	}
+}
\ No newline at end of file
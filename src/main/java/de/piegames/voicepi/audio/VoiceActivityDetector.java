@@ -0,0 +1,29 @@
+package de.piegames.voicepi.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Decides which parts of an audio stream contain speech. Implementations are specified in the {@code vad} object of the audio configuration by their
+ * {@code class-name} and need a public constructor taking that configuration as {@code JsonObject}. If none is specified, an {@link EnergyActivityDetector}
+ * will be used. <br/>
+ * A detector is only used by one command at a time. It is kept for later commands so it may learn about its environment, but commands that are recorded
+ * concurrently each get their own one.
+ */
+public interface VoiceActivityDetector {
+
+	/**
+	 * Called before searching for a new command.
+	 *
+	 * @param format the format of all audio that will be passed to {@link #isSpeech(byte[], int, int)} until the next reset
+	 * @param noiseFloor tracks the volume of the background noise in real time. Detectors may ignore it if they have their own way to tell noise from speech.
+	 */
+	public void reset(AudioFormat format, NoiseFloorTracker noiseFloor);
+
+	/**
+	 * Analyzes the next chunk of audio data.
+	 *
+	 * @param data the audio data, consisting of whole frames
+	 * @return {@code true} if the chunk contains speech
+	 */
+	public boolean isSpeech(byte[] data, int off, int len);
+}
@@ -0,0 +1,135 @@
+package de.piegames.voicepi.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A WAV file mapped into memory. The RIFF header gets parsed directly and the audio data is exposed as a slice of the mapping, so reading it does not copy
+ * anything or go through the layers of streams {@link javax.sound.sampled.AudioSystem} would use. Only uncompressed formats (integer PCM, float, a-law and
+ * &mu;-law) are supported, use {@link javax.sound.sampled.AudioSystem} for anything else.
+ */
+public class WavFile {
+
+	protected static final int	WAVE_FORMAT_PCM			= 1;
+	protected static final int	WAVE_FORMAT_IEEE_FLOAT	= 3;
+	protected static final int	WAVE_FORMAT_ALAW		= 6;
+	protected static final int	WAVE_FORMAT_MULAW		= 7;
+	protected static final int	WAVE_FORMAT_EXTENSIBLE	= 0xFFFE;
+
+	protected final File		file;
+	protected final AudioFormat	format;
+	protected final ByteBuffer	data;
+
+	protected WavFile(File file, AudioFormat format, ByteBuffer data) {
+		this.file = file;
+		this.format = format;
+		this.data = data;
+	}
+
+	/**
+	 * Maps the file and parses its header. The mapping is not a copy: changes to the file show up in the data, and reading data after the file has been
+	 * truncated crashes the thread (or even the VM) instead of throwing an {@link IOException}. Only map files that won't be changed while they are in use, like
+	 * the input of {@link FileAudio}, and copy anything that is kept around for longer.
+	 *
+	 * @throws UnsupportedAudioFileException if this is not a WAV file or its data is compressed
+	 */
+	public static WavFile open(File file) throws IOException, UnsupportedAudioFileException {
+		ByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new UnsupportedAudioFileException("File too large to be mapped: " + file);
+			map = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		if (map.remaining() < 12 || map.getInt(0) != 0x46464952 /* RIFF */ || map.getInt(8) != 0x45564157 /* WAVE */)
+			throw new UnsupportedAudioFileException("Not a WAV file: " + file);
+
+		AudioFormat format = null;
+		ByteBuffer data = null;
+		int position = 12;
+		while (position + 8 <= map.limit() && data == null) {
+			int id = map.getInt(position);
+			long size = map.getInt(position + 4) & 0xFFFFFFFFL;
+			int start = position + 8;
+			// Files written while streaming may not have the correct size in their header
+			int end = (int) Math.min(map.limit(), start + size);
+			if (id == 0x20746D66 /* fmt */) {
+				format = parseFormat(map, start, end, file);
+			} else if (id == 0x61746164 /* data */) {
+				if (format == null)
+					throw new UnsupportedAudioFileException("Data chunk before format chunk: " + file);
+				map.limit(end - (end - start) % format.getFrameSize()).position(start);
+				data = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+			}
+			// Chunks are padded to an even length
+			position = (int) Math.min(Integer.MAX_VALUE, start + size + (size & 1));
+		}
+		if (data == null)
+			throw new UnsupportedAudioFileException("No audio data found: " + file);
+		return new WavFile(file, format, data);
+	}
+
+	protected static AudioFormat parseFormat(ByteBuffer map, int start, int end, File file) throws UnsupportedAudioFileException {
+		if (end - start < 16)
+			throw new UnsupportedAudioFileException("Format chunk too short: " + file);
+		int tag = map.getShort(start) & 0xFFFF;
+		int channels = map.getShort(start + 2) & 0xFFFF;
+		float sampleRate = map.getInt(start + 4);
+		int blockAlign = map.getShort(start + 12) & 0xFFFF;
+		int bits = map.getShort(start + 14) & 0xFFFF;
+		if (tag == WAVE_FORMAT_EXTENSIBLE && end - start >= 26)
+			// The first two bytes of the sub format GUID are the actual format tag
+			tag = map.getShort(start + 24) & 0xFFFF;
+		if (channels == 0 || blockAlign == 0)
+			throw new UnsupportedAudioFileException("Invalid format: " + file);
+		Encoding encoding;
+		switch (tag) {
+			case WAVE_FORMAT_PCM:
+				encoding = bits <= 8 ? Encoding.PCM_UNSIGNED : Encoding.PCM_SIGNED;
+				break;
+			case WAVE_FORMAT_IEEE_FLOAT:
+				encoding = Encoding.PCM_FLOAT;
+				break;
+			case WAVE_FORMAT_ALAW:
+				encoding = Encoding.ALAW;
+				break;
+			case WAVE_FORMAT_MULAW:
+				encoding = Encoding.ULAW;
+				break;
+			default:
+				throw new UnsupportedAudioFileException("Unsupported WAV format " + tag + ": " + file);
+		}
+		return new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/** Returns a new read-only view on the audio data of the file, from its first to its last complete frame */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public long getFrameLength() {
+		return data.capacity() / format.getFrameSize();
+	}
+
+	/** Returns a new stream over the audio data */
+	public AudioInputStream getStream() {
+		return new AudioInputStream(new ByteBufferInputStream(getData()), format, getFrameLength());
+	}
+}
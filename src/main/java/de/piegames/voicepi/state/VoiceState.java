@@ -122,6 +122,11 @@ public class VoiceState {
 		return states.successors(state).stream().flatMap(node -> states.edgeValue(state, node).get().commands.stream()).collect(Collectors.toSet());
 	}
 
+	/** Get all states of the graph */
+	public Set<ContextState> getStates() {
+		return Collections.unmodifiableSet(states.nodes());
+	}
+
 	/** Get all commands from all edges of the graph */
 	public Set<String> getAllCommands() {
 		return states.edges().stream().flatMap(edge -> states.edgeValue(edge.source(), edge.target()).get().commands.stream()).collect(Collectors.toSet());
@@ -0,0 +1,47 @@
+package de.piegames.voicepi.stt;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import de.piegames.voicepi.CommandsCache;
+
+/**
+ * A JSGF grammar that accepts exactly one of the given commands. Unlike a {@link NGramModel language model}, it does not allow any other word sequences, so
+ * the recognizer only has to search the commands that make sense at the moment. The words are {@link NGramModel#tokenize(String) normalized} like in the
+ * language model and the dictionary, so they never contain characters with a meaning in JSGF.<br/>
+ * The name of the grammar is derived from its commands, so the same commands always result in the same grammar file.
+ */
+public class CommandGrammar {
+
+	protected final String		name;
+	protected final Set<String>	commands	= new TreeSet<>();
+
+	public CommandGrammar(Collection<String> commands) {
+		for (String command : commands) {
+			List<String> words = NGramModel.tokenize(command);
+			if (!words.isEmpty())
+				this.commands.add(String.join(" ", words));
+		}
+		if (this.commands.isEmpty())
+			throw new IllegalArgumentException("A grammar needs at least one command");
+		this.name = "commands" + CommandsCache.key(this.commands).substring(0, 16);
+	}
+
+	/** The name of the grammar. Sphinx expects it in a file called {@code <name>.gram}. */
+	public String getName() {
+		return name;
+	}
+
+	public String getFileName() {
+		return name + ".gram";
+	}
+
+	public String toJsgf() {
+		StringBuilder jsgf = new StringBuilder();
+		jsgf.append("#JSGF V1.0;\n\n");
+		jsgf.append("grammar ").append(name).append(";\n\n");
+		jsgf.append("public <command> = ").append(String.join("\n\t| ", commands)).append(";\n");
+		return jsgf.toString();
+	}
+}
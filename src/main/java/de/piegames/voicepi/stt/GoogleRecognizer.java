@@ -2,9 +2,17 @@ package de.piegames.voicepi.stt;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import javax.sound.sampled.AudioInputStream;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+import com.google.api.gax.rpc.ApiStreamObserver;
 import com.google.cloud.speech.v1p1beta1.RecognitionAudio;
 import com.google.cloud.speech.v1p1beta1.RecognitionConfig;
 import com.google.cloud.speech.v1p1beta1.RecognitionConfig.AudioEncoding;
@@ -12,14 +20,35 @@ import com.google.cloud.speech.v1p1beta1.RecognizeResponse;
 import com.google.cloud.speech.v1p1beta1.SpeechClient;
 import com.google.cloud.speech.v1p1beta1.SpeechRecognitionAlternative;
 import com.google.cloud.speech.v1p1beta1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1p1beta1.StreamingRecognizeResponse;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.google.protobuf.ByteString;
 import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.audio.AudioSegment;
+import de.piegames.voicepi.Settings;
+import de.piegames.voicepi.audio.CommandListener;
+import de.piegames.voicepi.state.VoiceState;
 
 public class GoogleRecognizer extends SpeechRecognizer {
 
+	/** Send the audio to Google while the command is still being spoken, instead of waiting for it to finish */
+	protected boolean		streaming;
+	/** Shared by all requests, so that the connection only needs to be established once */
+	protected SpeechClient	speech;
+
 	public GoogleRecognizer(JsonObject config) {
 		super(config);
+		streaming = Optional.ofNullable(config.getAsJsonPrimitive("streaming")).map(JsonPrimitive::getAsBoolean).orElse(true);
+	}
+
+	@Override
+	public void load(Audio audio, VoiceState stateMachine, Settings settings, BlockingQueue<Collection<String>> commandsSpoken, Set<String> commands) throws IOException {
+		super.load(audio, stateMachine, settings, commandsSpoken, commands);
+		speech = SpeechClient.create();
 	}
 
 	@Override
@@ -28,13 +57,11 @@ public class GoogleRecognizer extends SpeechRecognizer {
 			log.debug("Listening");
 			try {
 				System.out.println("Start-------------------------------------------");
-				AudioInputStream in = audio.listenCommand(Audio.FORMAT);
-				if (in == null) {
+				List<String> strres = recognizeCommand();
+				if (strres == null) {
 					System.out.println("NOPE!");
 					continue;
 				}
-				byte[] fileData = Audio.readAllBytes(in);
-				List<String> strres = syncRecognizeData(fileData);
 				this.commandsSpoken.offer(strres);
 			} catch (Exception e) {
 				log.error("Could not analyze audio: ", e);
@@ -58,15 +85,12 @@ public class GoogleRecognizer extends SpeechRecognizer {
 	@Override
 	public List<String> transcribe() {
 		try {
-			// TODO may be null
-			AudioInputStream in = audio.listenCommand(Audio.FORMAT);
-			// System.out.println("Done");
-			if (in == null) {
+			List<String> strres = recognizeCommand();
+			if (strres == null) {
 				System.out.println("NOPE!");
 				return Collections.emptyList();
 			}
-			byte[] b = Audio.readAllBytes(in);
-			return syncRecognizeData(b);
+			return strres;
 			// TODO multi-catch?
 		} catch (IOException e) {
 			log.error("Could not read from microphone input", e);
@@ -78,23 +102,53 @@ public class GoogleRecognizer extends SpeechRecognizer {
 
 	@Override
 	public void unload() {
+		super.unload();
+		if (speech != null)
+			try {
+				speech.close();
+			} catch (Exception e) {
+				log.warn("Could not close the connection to Google", e);
+			}
+		speech = null;
+	}
+
+	/**
+	 * Records the next command and recognizes it. If streaming is enabled and the audio is in the right format, the audio will already be sent while the
+	 * command is being spoken.
+	 *
+	 * @return the recognized results or {@code null} if no command was spoken
+	 */
+	protected List<String> recognizeCommand() throws Exception {
+		StreamingSession session = streaming ? new StreamingSession() : null;
+		ByteString data = null;
+		// The segment keeps the producer from overwriting it, so it must be closed before anything slow happens
+		try (AudioSegment command = audio.recordCommand(session)) {
+			if (command == null)
+				return null;
+			if (session == null || !session.isStreaming())
+				data = toLinear16(command);
+		}
+		if (data == null)
+			return session.getResults();
+		return syncRecognizeData(data);
+	}
+
+	/** Encodes the audio data the way the API expects it. Only one copy will be made if the audio already is in {@link Audio#FORMAT}. */
+	protected ByteString toLinear16(AudioSegment command) throws IOException {
+		if (command.getFormat().matches(Audio.FORMAT))
+			return ByteString.copyFrom(command.asByteBuffer());
+		return ByteString.readFrom(command.getStream(Audio.FORMAT));
 	}
 
 	public List<String> syncRecognizeData(byte[] data) throws Exception, IOException {
 		if (data == null)
 			return Collections.emptyList();
-		log.info("Processing audio data...");
-		SpeechClient speech = SpeechClient.create(); // TODO reuse variable
-		ByteString audioBytes = ByteString.copyFrom(data);
+		return syncRecognizeData(ByteString.copyFrom(data));
+	}
 
-		// Configure request with local raw PCM audio
-		RecognitionConfig config = RecognitionConfig.newBuilder()
-				.setEncoding(AudioEncoding.LINEAR16)
-				// .setLanguageCode(control.getSettings().getLangCode())
-				.setSampleRateHertz(16000)
-				// TODO don't use this when transcribing
-				// .addSpeechContexts(SpeechContext.newBuilder().addAllPhrases(control.getStateMachine().getAvailableCommands()).build())
-				.build();
+	public List<String> syncRecognizeData(ByteString audioBytes) throws Exception, IOException {
+		log.info("Processing audio data...");
+		RecognitionConfig config = recognitionConfig();
 		RecognitionAudio audio = RecognitionAudio.newBuilder()
 				.setContent(audioBytes)
 				.build();
@@ -110,7 +164,81 @@ public class GoogleRecognizer extends SpeechRecognizer {
 			SpeechRecognitionAlternative alternative = result.getAlternativesList().get(0);
 			strres.add(alternative.getTranscript().toUpperCase());
 		}
-		speech.close();
 		return strres;
 	}
+
+	/** Configures requests with local raw PCM audio */
+	protected RecognitionConfig recognitionConfig() {
+		return RecognitionConfig.newBuilder()
+				.setEncoding(AudioEncoding.LINEAR16)
+				// .setLanguageCode(control.getSettings().getLangCode())
+				.setSampleRateHertz(16000)
+				// TODO don't use this when transcribing
+				// .addSpeechContexts(SpeechContext.newBuilder().addAllPhrases(control.getStateMachine().getAvailableCommands()).build())
+				.build();
+	}
+
+	/**
+	 * Streams the audio of one command to Google while it is being recorded, over the recognizer's {@link GoogleRecognizer#speech client}. If the audio is
+	 * not in {@link Audio#FORMAT}, nothing will be streamed and the command has to be recognized the usual way.
+	 */
+	protected class StreamingSession implements CommandListener, ApiStreamObserver<StreamingRecognizeResponse> {
+
+		protected ApiStreamObserver<StreamingRecognizeRequest>	requests;
+		protected final List<String>							results	= new ArrayList<>();
+		protected final CompletableFuture<List<String>>			done	= new CompletableFuture<>();
+
+		@Override
+		public void commandStarted(AudioFormat format) {
+			if (!format.matches(Audio.FORMAT))
+				return;
+			log.info("Streaming audio data...");
+			requests = speech.streamingRecognizeCallable().bidiStreamingCall(this);
+			requests.onNext(StreamingRecognizeRequest.newBuilder()
+					.setStreamingConfig(StreamingRecognitionConfig.newBuilder().setConfig(recognitionConfig()))
+					.build());
+		}
+
+		@Override
+		public void commandAudio(AudioSegment audio) {
+			if (requests != null)
+				requests.onNext(StreamingRecognizeRequest.newBuilder().setAudioContent(ByteString.copyFrom(audio.asByteBuffer())).build());
+		}
+
+		@Override
+		public void commandFinished(boolean aborted) {
+			if (requests == null)
+				return;
+			if (aborted)
+				requests.onError(new CancellationException("Not a command"));
+			else
+				requests.onCompleted();
+		}
+
+		@Override
+		public void onNext(StreamingRecognizeResponse response) {
+			for (StreamingRecognitionResult result : response.getResultsList())
+				if (result.getIsFinal() && result.getAlternativesCount() > 0)
+					results.add(result.getAlternatives(0).getTranscript().toUpperCase());
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			done.completeExceptionally(t);
+		}
+
+		@Override
+		public void onCompleted() {
+			done.complete(results);
+		}
+
+		public boolean isStreaming() {
+			return requests != null;
+		}
+
+		/** Waits for Google to send the final results */
+		public List<String> getResults() throws Exception {
+			return done.get(10, TimeUnit.SECONDS);
+		}
+	}
 }
\ No newline at end of file
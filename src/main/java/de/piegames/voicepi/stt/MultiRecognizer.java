@@ -103,6 +103,12 @@ public class MultiRecognizer extends SpeechRecognizer {
 			r.getKey().deafenRecognition(deaf);
 	}
 
+	/** The listener switching the recognizers is registered on the old state machine, so this gets loaded again */
+	@Override
+	public boolean rebind(VoiceState stateMachine, Settings settings) {
+		return false;
+	}
+
 	@Override
 	public boolean transcriptionSupported() {
 		return false;// TODO
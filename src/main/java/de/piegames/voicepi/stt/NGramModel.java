@@ -0,0 +1,160 @@
+package de.piegames.voicepi.stt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A back-off n-gram language model trained on a small set of sentences, like the commands of the application. Counts are discounted absolutely by
+ * {@link #DISCOUNT} and the freed probability mass goes to the next lower order, which is what the CMU lmtool does as well. Unigrams are not discounted since
+ * the vocabulary is closed. The model can be written in the ARPA format that Sphinx reads using {@link #toArpa()}.<br/>
+ * Training is done in memory and takes a few milliseconds for a few hundred commands.
+ */
+public class NGramModel {
+
+	public static final String							SENTENCE_START	= "<s>", SENTENCE_END = "</s>";
+	public static final double							DISCOUNT		= 0.5;
+
+	protected final int									order;
+	/** {@code counts.get(n - 1)} maps each n-gram to how often it occurs */
+	protected final List<Map<List<String>, Integer>>	counts			= new ArrayList<>();
+	/** How often each history occurs followed by any word, and by how many different words */
+	protected final Map<List<String>, int[]>			histories		= new TreeMap<>(NGramModel::compare);
+	/** The back-off weight of each history that has one */
+	protected final Map<List<String>, Double>			backoff			= new TreeMap<>(NGramModel::compare);
+	protected final Set<String>							vocabulary		= new TreeSet<>();
+	protected int										total;
+
+	/** Trains a model of the given order. Sentences are split into words by {@link #tokenize(String)}. */
+	public NGramModel(Collection<String> sentences, int order) {
+		if (order < 1)
+			throw new IllegalArgumentException("Order must be positive, " + order + " given");
+		this.order = order;
+		for (int n = 0; n < order; n++)
+			counts.add(new TreeMap<>(NGramModel::compare));
+		for (String sentence : sentences) {
+			List<String> words = tokenize(sentence);
+			if (words.isEmpty())
+				continue;
+			List<String> tokens = new ArrayList<>(words.size() + 2);
+			tokens.add(SENTENCE_START);
+			tokens.addAll(words);
+			tokens.add(SENTENCE_END);
+			vocabulary.addAll(tokens);
+			for (int n = 1; n <= order; n++)
+				for (int i = 0; i + n <= tokens.size(); i++)
+					counts.get(n - 1).merge(Collections.unmodifiableList(new ArrayList<>(tokens.subList(i, i + n))), 1, Integer::sum);
+		}
+		for (Map.Entry<List<String>, Integer> e : counts.get(0).entrySet())
+			if (!e.getKey().get(0).equals(SENTENCE_START))
+				total += e.getValue();
+		for (int n = 2; n <= order; n++)
+			for (Map.Entry<List<String>, Integer> e : counts.get(n - 1).entrySet()) {
+				int[] history = histories.computeIfAbsent(e.getKey().subList(0, n - 1), k -> new int[2]);
+				history[0] += e.getValue();
+				history[1]++;
+			}
+		// Lower orders first, since the weights depend on the probabilities one order below
+		List<List<String>> sorted = new ArrayList<>(histories.keySet());
+		sorted.sort((a, b) -> a.size() != b.size() ? Integer.compare(a.size(), b.size()) : compare(a, b));
+		for (List<String> history : sorted) {
+			int[] count = histories.get(history);
+			double left = DISCOUNT * count[1] / count[0];
+			double lower = 0;
+			for (String word : vocabulary)
+				if (counts.get(history.size()).containsKey(concat(history, word)))
+					lower += probability(word, history.subList(1, history.size()));
+			// If the history is followed by every word, the mass left over can't go anywhere
+			backoff.put(history, lower < 1 - 1e-9 ? left / (1 - lower) : 1);
+		}
+	}
+
+	/**
+	 * Splits a sentence into upper case words, the way the language model, the {@link PronunciationDictionary dictionary} and the {@link CommandGrammar grammars}
+	 * expect them. Punctuation gets removed ("Hello, what's up?" becomes HELLO WHAT'S UP), only letters, digits and apostrophes within words are kept. Words
+	 * that consist of punctuation only, like "&amp;", are left out.
+	 */
+	public static List<String> tokenize(String sentence) {
+		List<String> words = new ArrayList<>();
+		for (String token : sentence.trim().toUpperCase(Locale.ROOT).split("\\s+")) {
+			String word = token.replaceAll("[^\\p{L}\\p{N}']", "").replaceAll("^'+|'+$", "");
+			if (!word.isEmpty())
+				words.add(word);
+		}
+		return words;
+	}
+
+	/** The probability of {@code word} following the given words, backing off to shorter histories where needed */
+	public double probability(String word, List<String> history) {
+		if (history.size() >= order)
+			history = history.subList(history.size() - order + 1, history.size());
+		if (history.isEmpty()) {
+			if (word.equals(SENTENCE_START))
+				return 0;
+			return counts.get(0).getOrDefault(Collections.singletonList(word), 0) / (double) total;
+		}
+		Integer count = counts.get(history.size()).get(concat(history, word));
+		if (count != null)
+			return (count - DISCOUNT) / histories.get(history)[0];
+		return backoff.getOrDefault(history, 1.0) * probability(word, history.subList(1, history.size()));
+	}
+
+	/** All words the model knows, without the sentence boundary markers */
+	public Set<String> getWords() {
+		Set<String> words = new TreeSet<>(vocabulary);
+		words.remove(SENTENCE_START);
+		words.remove(SENTENCE_END);
+		return words;
+	}
+
+	public int getOrder() {
+		return order;
+	}
+
+	/** Writes the model in the ARPA format. Probabilities and back-off weights are base 10 logarithms, impossible events get -99. */
+	public String toArpa() {
+		StringBuilder arpa = new StringBuilder();
+		arpa.append("\\data\\\n");
+		for (int n = 1; n <= order; n++)
+			arpa.append("ngram ").append(n).append('=').append(counts.get(n - 1).size()).append('\n');
+		for (int n = 1; n <= order; n++) {
+			arpa.append("\n\\").append(n).append("-grams:\n");
+			for (List<String> ngram : counts.get(n - 1).keySet()) {
+				double p = probability(ngram.get(n - 1), ngram.subList(0, n - 1));
+				arpa.append(log(p)).append(' ').append(String.join(" ", ngram));
+				if (n < order)
+					arpa.append(' ').append(log(backoff.getOrDefault(ngram, 1.0)));
+				arpa.append('\n');
+			}
+		}
+		arpa.append("\n\\end\\\n");
+		return arpa.toString();
+	}
+
+	private static String log(double p) {
+		return p <= 0 ? "-99.0000" : String.format(Locale.ROOT, "%.4f", Math.log10(p));
+	}
+
+	private static List<String> concat(List<String> history, String word) {
+		List<String> ngram = new ArrayList<>(history.size() + 1);
+		ngram.addAll(history);
+		ngram.add(word);
+		return ngram;
+	}
+
+	/** Orders n-grams word by word, so that the output is stable */
+	private static int compare(List<String> a, List<String> b) {
+		for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+			int c = a.get(i).compareTo(b.get(i));
+			if (c != 0)
+				return c;
+		}
+		return Integer.compare(a.size(), b.size());
+	}
+}
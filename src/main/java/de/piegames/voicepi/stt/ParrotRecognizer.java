@@ -1,13 +1,11 @@
 package de.piegames.voicepi.stt;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import com.google.gson.JsonObject;
-import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.audio.AudioSegment;
 
 public class ParrotRecognizer extends SpeechRecognizer {
 
@@ -33,15 +31,18 @@ public class ParrotRecognizer extends SpeechRecognizer {
 	public List<String> transcribe() {
 		try {
 			System.out.println("Start-------------------------------------------");
-			AudioInputStream in = audio.listenCommand(Audio.FORMAT);
-			if (in == null) {
-				System.out.println("NOPE!");
-				return Collections.emptyList();
+			AudioSegment copy;
+			try (AudioSegment command = audio.recordCommand()) {
+				if (command == null) {
+					System.out.println("NOPE!");
+					return Collections.emptyList();
+				}
+				if (deaf)
+					return Collections.emptyList();
+				// Playing takes as long as the command, the recording must not stall for that long
+				copy = new AudioSegment(ByteBuffer.wrap(command.toByteArray()), command.getFormat());
 			}
-			byte[] fileData = Audio.readAllBytes(in);
-			if (!deaf)
-				audio.play(
-						new AudioInputStream(new ByteArrayInputStream(fileData), Audio.FORMAT, AudioSystem.NOT_SPECIFIED));
+			audio.play(copy.getStream());
 		} catch (IOException e) {
 			log.warn(e);
 		}
@@ -20,7 +20,8 @@ import edu.cmu.sphinx.api.Configuration;
 
 public class PocketSphinxRecognizer extends SphinxBaseRecognizer {
 
-	protected Pipeline pipeline;
+	protected Pipeline	pipeline;
+	protected Element	asr;
 
 	public PocketSphinxRecognizer(JsonObject config) {
 		super(config);
@@ -41,7 +42,7 @@ public class PocketSphinxRecognizer extends SphinxBaseRecognizer {
 		Gst.init();
 		// FIXME: this will fail after reloading for some reason
 		pipeline = Pipeline.launch("autoaudiosrc ! audioconvert !  audioresample ! pocketsphinx name=asr ! fakesink");
-		Element asr = pipeline.getElementByName("asr");
+		asr = pipeline.getElementByName("asr");
 		System.out.println(Arrays.toString(asr.listPropertyNames().toArray()));
 		asr.set("lm", lmPath.toAbsolutePath());
 		asr.set("dict", dicPath.toAbsolutePath());
@@ -87,6 +88,20 @@ public class PocketSphinxRecognizer extends SphinxBaseRecognizer {
 		super.stopRecognition();
 	}
 
+	/** The pipeline is paused, so the new model can be set on it directly */
+	@Override
+	public boolean updateCommands(Set<String> commands) {
+		try {
+			prepareModel(commands);
+		} catch (IOException e) {
+			log.warn("Could not update the language model", e);
+			return false;
+		}
+		asr.set("lm", lmPath.toAbsolutePath());
+		asr.set("dict", dicPath.toAbsolutePath());
+		return true;
+	}
+
 	@Override
 	public void deafenRecognition(boolean deaf) {
 		super.deafenRecognition(deaf);
@@ -0,0 +1,164 @@
+package de.piegames.voicepi.stt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.sun.speech.freetts.lexicon.LetterToSound;
+import com.sun.speech.freetts.lexicon.LetterToSoundImpl;
+
+/**
+ * Creates Sphinx dictionaries for a given set of words. The pronunciations are taken from the CMU dictionary that comes with the Sphinx models. Words it
+ * doesn't know are guessed by the letter to sound rules of FreeTTS ("grapheme to phoneme"), and if those aren't available either, by spelling them letter by
+ * letter. Digits are spelled one by one. Words are expected to be {@link NGramModel#tokenize(String) normalized} already.<br/>
+ * The dictionary is streamed on every lookup and only the requested words are kept, so that its 130000 entries don't stay in memory.
+ */
+public class PronunciationDictionary {
+
+	/** The CMU dictionary within the Sphinx data */
+	public static final String						CMUDICT		= "/edu/cmu/sphinx/models/en-us/cmudict-en-us.dict";
+	/** The letter to sound rules within the FreeTTS CMU lexicon */
+	public static final String						LTS_RULES	= "/com/sun/speech/freetts/en/us/cmulex_lts.bin";
+
+	private static final Log						log			= LogFactory.getLog(PronunciationDictionary.class);
+	/** A rough pronunciation of each letter, for when there are no letter to sound rules */
+	private static final String[]					LETTERS		= { "AE", "B", "K", "D", "EH", "F", "G", "HH", "IH", "JH", "K", "L", "M", "N", "AA", "P", "K W",
+			"R", "S", "T", "AH", "V", "W", "K S", "Y", "Z" };
+	/** The pronunciation of each digit, so that numbers can be spelled digit by digit */
+	private static final String[]					DIGITS		= { "Z IH R OW", "W AH N", "T UW", "TH R IY", "F AO R", "F AY V", "S IH K S", "S EH V AH N",
+			"EY T", "N AY N" };
+	/** The parts of a word that get pronounced on their own: runs of letters (including apostrophes within them) and single digits */
+	private static final Pattern					PARTS		= Pattern.compile("[a-z][a-z']*|[0-9]");
+	private static LetterToSound					lts;
+	private static boolean							ltsLoaded;
+
+	protected final URL								dictionary;
+
+	/** Uses the CMU dictionary from the class path */
+	public PronunciationDictionary() {
+		this(PronunciationDictionary.class.getResource(CMUDICT));
+	}
+
+	/** Uses a dictionary in the Sphinx format. If it is {@code null}, all words will be guessed. */
+	public PronunciationDictionary(URL dictionary) {
+		this.dictionary = dictionary;
+		if (dictionary == null)
+			log.warn("No pronunciation dictionary found, all pronunciations will be guessed");
+	}
+
+	/**
+	 * Returns all pronunciations of each of the words, as space separated phones. The words are converted to upper case. Words that are neither in the
+	 * dictionary nor can be {@link #guess(String) guessed} are left out with a warning.
+	 */
+	public Map<String, List<String>> lookup(Collection<String> words) throws IOException {
+		Map<String, String> wanted = new HashMap<>();
+		for (String word : words)
+			wanted.put(word.toLowerCase(Locale.ROOT), word.toUpperCase(Locale.ROOT));
+		Map<String, List<String>> pronunciations = new TreeMap<>();
+		if (dictionary != null)
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(dictionary.openStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int space = line.indexOf(' ');
+					if (space <= 0)
+						continue;
+					// Alternative pronunciations are written as "word(2)"
+					int variant = line.indexOf('(');
+					String word = line.substring(0, variant > 0 && variant < space ? variant : space);
+					String upper = wanted.get(word.toLowerCase(Locale.ROOT));
+					if (upper != null)
+						pronunciations.computeIfAbsent(upper, k -> new ArrayList<>()).add(line.substring(space + 1).trim().toUpperCase(Locale.ROOT));
+				}
+			}
+		for (String upper : wanted.values())
+			if (!pronunciations.containsKey(upper)) {
+				String guess = guess(upper);
+				if (guess == null) {
+					log.warn("Cannot pronounce " + upper + ", leaving it out of the dictionary");
+					continue;
+				}
+				log.debug("Guessed the pronunciation of " + upper + ": " + guess);
+				List<String> guesses = new ArrayList<>();
+				guesses.add(guess);
+				pronunciations.put(upper, guesses);
+			}
+		return pronunciations;
+	}
+
+	/** Creates the content of a Sphinx dictionary file for the given words */
+	public String compile(Collection<String> words) throws IOException {
+		StringBuilder dic = new StringBuilder();
+		for (Map.Entry<String, List<String>> e : lookup(words).entrySet())
+			for (int i = 0; i < e.getValue().size(); i++)
+				dic.append(e.getKey()).append(i == 0 ? "" : "(" + (i + 1) + ")").append('\t').append(e.getValue().get(i)).append('\n');
+		return dic.toString();
+	}
+
+	/**
+	 * Guesses the pronunciation of a word, using the letter to sound rules if available. Digits are spelled one by one, everything except for ASCII letters and
+	 * digits is ignored.
+	 *
+	 * @return the phones, or {@code null} if the word contains nothing that can be pronounced
+	 */
+	public static String guess(String word) {
+		List<String> parts = new ArrayList<>();
+		// Letters and digits are pronounced separately, like "MP3" as "MP" followed by "THREE"
+		Matcher matcher = PARTS.matcher(word.toLowerCase(Locale.ROOT));
+		while (matcher.find()) {
+			String part = matcher.group();
+			parts.add(Character.isDigit(part.charAt(0)) ? DIGITS[part.charAt(0) - '0'] : guessLetters(part));
+		}
+		return parts.isEmpty() ? null : String.join(" ", parts);
+	}
+
+	/** Guesses the pronunciation of lower case ASCII letters, ignoring apostrophes */
+	protected static String guessLetters(String letters) {
+		letters = letters.replace("'", "");
+		LetterToSound lts = getLetterToSound();
+		if (lts != null) {
+			List<String> phones = new ArrayList<>();
+			for (String phone : lts.getPhones(letters, null)) {
+				// FreeTTS marks the stress and has a schwa, which the Sphinx models don't
+				phone = phone.replaceAll("\\d", "").toUpperCase(Locale.ROOT);
+				if (phone.equals("PAU"))
+					continue;
+				phones.add(phone.equals("AX") ? "AH" : phone);
+			}
+			if (!phones.isEmpty())
+				return String.join(" ", phones);
+		}
+		List<String> phones = new ArrayList<>();
+		for (char c : letters.toCharArray())
+			phones.add(LETTERS[c - 'a']);
+		return String.join(" ", phones);
+	}
+
+	/** Loads the letter to sound rules once. Returns {@code null} if they are not on the class path. */
+	protected static synchronized LetterToSound getLetterToSound() {
+		if (!ltsLoaded) {
+			ltsLoaded = true;
+			URL rules = PronunciationDictionary.class.getResource(LTS_RULES);
+			if (rules == null)
+				log.warn("No letter to sound rules found, unknown words will be spelled");
+			else
+				try {
+					lts = new LetterToSoundImpl(rules, true);
+				} catch (IOException e) {
+					log.warn("Could not load the letter to sound rules, unknown words will be spelled", e);
+				}
+		}
+		return lts;
+	}
+}
@@ -63,6 +63,26 @@ public abstract class SpeechRecognizer implements Runnable {
 		this.stateMachine = stateMachine;
 	}
 
+	/**
+	 * Called when the application reloads while this recognizer's configuration and the audio did not change. The recognizer is running and will be kept
+	 * running with the new state machine and settings. Recognizers that can't switch to them should return {@code false}, they will be unloaded and loaded
+	 * again instead.
+	 */
+	public boolean rebind(VoiceState stateMachine, Settings settings) {
+		this.stateMachine = stateMachine;
+		this.settings = settings;
+		return true;
+	}
+
+	/**
+	 * Called when the application reloads and only the commands changed, after {@link #rebind(VoiceState, Settings)}. The recognizer is stopped and will be
+	 * started again afterwards. Recognizers that can change their vocabulary without being loaded again should do so and return {@code true}. This is the
+	 * case by default, since a recognizer doesn't have to use the commands at all.
+	 */
+	public boolean updateCommands(Set<String> commands) {
+		return true;
+	}
+
 	/**
 	 * Called in a background thread. This method will continuously listen for any spoken commands and add them to {@code #commandsSpoken}. It is expected to
 	 * return if {@link Thread#interrupt()} is called.
@@ -95,7 +115,7 @@ public abstract class SpeechRecognizer implements Runnable {
 		thread = null;
 	}
 
-	protected boolean isRunning() {
+	public boolean isRunning() {
 		return thread != null;
 	}
 
@@ -1,29 +1,15 @@
 package de.piegames.voicepi.stt;
 
 import java.io.IOException;
-import java.net.URL;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.mime.HttpMultipartMode;
-import org.apache.http.entity.mime.MultipartEntity;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
+import org.apache.commons.logging.LogFactory;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import de.piegames.voicepi.CommandsCache;
@@ -32,10 +18,23 @@ import de.piegames.voicepi.Settings;
 import de.piegames.voicepi.audio.Audio;
 import de.piegames.voicepi.state.VoiceState;
 
-@SuppressWarnings("deprecation")
+/**
+ * Base class for the Sphinx based recognizers. They need a language model and a dictionary for the registered commands, which are created on
+ * {@link #load(Audio, VoiceState, Settings, BlockingQueue, Set)} by {@link NGramModel} and {@link PronunciationDictionary} without any network access.
+ */
 public abstract class SphinxBaseRecognizer extends SpeechRecognizer {
 
-	protected Path lmPath, dicPath;
+	/** Trigrams, like the CMU lmtool creates */
+	public static final int		LM_ORDER	= 3;
+
+	private static boolean		tempFilesDeleted;
+
+	/** The files of the current model, within the cache */
+	protected Path				lmPath, dicPath;
+	/** The cache entry of the current model */
+	protected CacheElement		model;
+	/** The commands of the current model */
+	protected Set<String>		commands;
 
 	public SphinxBaseRecognizer(JsonObject config) {
 		super(config);
@@ -44,69 +43,51 @@ public abstract class SphinxBaseRecognizer extends SpeechRecognizer {
 	@Override
 	public void load(Audio audio, VoiceState stateMachine, Settings settings, BlockingQueue<Collection<String>> commandsSpoken, Set<String> commands) throws IOException {
 		super.load(audio, stateMachine, settings, commandsSpoken, commands);
+		prepareModel(commands);
+	}
+
+	/** Sets {@link #lmPath} and {@link #dicPath} to the model for these commands, taking it from the cache or compiling it */
+	protected void prepareModel(Set<String> commands) throws IOException {
 		// Check cache
-		CommandsCache cache = new CommandsCache(Paths.get("cache.json"));
-		cache.loadFromCache();
+		CommandsCache cache = new CommandsCache(Paths.get("cache"));
+		cache.loadIndex();
 		int cacheSize = 10;
 		JsonPrimitive jp = config.getAsJsonPrimitive("corpus-history-size");
 		if (jp != null)
 			cacheSize = config.getAsJsonPrimitive("corpus-history-size").getAsInt();
-		lmPath = Files.createTempFile("voicepi-cached-", ".lm");
-		dicPath = Files.createTempFile("voicepi-cached-", ".dic");
-		Path corpusPath = Files.createTempFile("voicepi-cached-", ".corpus");
+		deleteTempFiles();
 
 		Optional<CacheElement> hit = cache.check(commands);
+		CacheElement element;
 		if (hit.isPresent()) {
-			Files.write(dicPath, hit.get().dic.getBytes());
-			Files.write(lmPath, hit.get().lm.getBytes());
+			element = hit.get();
 		} else {
-			Files.write(corpusPath, commands);
-
-			@SuppressWarnings("resource")
-			HttpClient client = new DefaultHttpClient();
-			String downloadURL;
-			{
-				MultipartEntity entity = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
-				entity.addPart("formtype", new StringBody("simple"));
-				entity.addPart("corpus", new FileBody(corpusPath.toFile()));
-
-				log.debug("Uploading corpus file to \"http://www.speech.cs.cmu.edu/cgi-bin/tools/lmtool/run\". Visit \"http://www.speech.cs.cmu.edu/tools/lmtool.html\" for more information.");
-				HttpPost post = new HttpPost("http://www.speech.cs.cmu.edu/cgi-bin/tools/lmtool/run");
-				post.setEntity(entity);
-
-				HttpResponse response = client.execute(post);
-				log.debug("Response from the server: " + response.getStatusLine() + ", " + Arrays.toString(response.getAllHeaders()));
-				downloadURL = response.getFirstHeader("Location").getValue();
-				EntityUtils.consume(response.getEntity());
-			}
-			// Get actual download urls
-			String baseName;
-			{
-				log.debug("The compiled models can be found at and will be downloaded from \"" + downloadURL + "\"");
-				// TODO Catch possible exceptions for connection issues etc
-				HttpGet get = new HttpGet(downloadURL);
-				HttpResponse response = client.execute(get);
-				// log.debug("Response from the server: " + response.getStatusLine() + ", " + Arrays.toString(response.getAllHeaders()));
-				String text = new BasicResponseHandler().handleResponse(response);
-				// String text = IOUtils.toString(new URL(downloadURL), (Charset) null);
-				log.debug("The response from the server: " + text);
-				Pattern pattern = Pattern.compile("(<b>)(\\d*?)(</b>)");
-				Matcher m = pattern.matcher(text);
-				m.find();
-				baseName = m.group(2);
-				log.debug("The base name is " + baseName);
-			}
-			// Download new language model
-			{
-				log.debug("Downloading the language model file from " + downloadURL + "/" + baseName + ".lm");
-				IOUtils.copy(new URL(downloadURL + "/" + baseName + ".lm").openStream(), Files.newOutputStream(lmPath));
-				log.debug("Downloading the dictionary file from " + downloadURL + "/" + baseName + ".dic");
-				IOUtils.copy(new URL(downloadURL + "/" + baseName + ".dic").openStream(), Files.newOutputStream(dicPath));
-			}
+			long time = System.nanoTime();
+			NGramModel model = new NGramModel(commands, LM_ORDER);
+			String lm = model.toArpa();
+			String dic = new PronunciationDictionary().compile(model.getWords());
+			log.debug("Compiled the language model and dictionary for " + model.getWords().size() + " words in " + (System.nanoTime() - time) / 1000000 + "ms");
+			// Put that thing into the cache
+			element = cache.addToCache(commands, lm, dic);
+		}
+		cache.saveIndex(cacheSize);
+		// Sphinx reads them right from the cache
+		model = element;
+		this.commands = commands;
+		lmPath = element.getLmPath();
+		dicPath = element.getDicPath();
+	}
 
-			// But that thing back to cache and write it
-			cache.addToCache(commands, new String(Files.readAllBytes(lmPath)), new String(Files.readAllBytes(dicPath)));
-			cache.saveToFile(cacheSize);
+	/** Older versions copied the models to a new temporary file on every start and never deleted them. This cleans them up once per run. */
+	private static synchronized void deleteTempFiles() {
+		if (tempFilesDeleted)
+			return;
+		tempFilesDeleted = true;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(System.getProperty("java.io.tmpdir")), "voicepi-cached-*")) {
+			for (Path file : files)
+				Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LogFactory.getLog(SphinxBaseRecognizer.class).debug("Could not delete old temporary files", e);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -2,6 +2,9 @@ package de.piegames.voicepi.stt;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import javax.sound.sampled.AudioFormat;
@@ -9,14 +12,25 @@ import javax.sound.sampled.LineUnavailableException;
 import com.google.gson.JsonObject;
 import de.piegames.voicepi.Settings;
 import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.state.ContextState;
 import de.piegames.voicepi.state.VoiceState;
 import edu.cmu.sphinx.api.Configuration;
 import edu.cmu.sphinx.api.SpeechResult;
+import javafx.beans.value.ChangeListener;
 
 public class SphinxRecognizer extends SphinxBaseRecognizer {
 
-	protected SphinxSpeechRecognizer	stt;
-	protected AudioFormat				format;
+	protected SphinxSpeechRecognizer				stt;
+	protected AudioFormat							format;
+	/** Whether to only search the commands that are available in the current state, using a grammar for each state */
+	protected boolean								stateGrammars;
+	/** Whether the recognizer has been loaded with grammars. This is not the case if there are no commands. */
+	protected boolean								usingGrammars;
+	/** The name of the grammar for each state that has commands */
+	protected final Map<ContextState, String>		grammars		= new HashMap<>();
+	/** The grammar of all commands, for the states that don't have their own */
+	protected String								allGrammar;
+	protected final ChangeListener<ContextState>	stateListener	= (obj, oldVal, newVal) -> switchGrammar(newVal);
 
 	public SphinxRecognizer(JsonObject config) {
 		super(config);
@@ -26,6 +40,7 @@ public class SphinxRecognizer extends SphinxBaseRecognizer {
 		boolean signed = config.has("signed") ? config.getAsJsonArray("signed").getAsBoolean() : true;
 		boolean bigEndian = config.has("big-endian") ? config.getAsJsonArray("big-endian").getAsBoolean() : false;
 		format = new AudioFormat(sampleRate, sampleSize, channels, signed, bigEndian);
+		stateGrammars = config.has("state-grammars") ? config.getAsJsonPrimitive("state-grammars").getAsBoolean() : true;
 	}
 
 	@Override
@@ -37,7 +52,61 @@ public class SphinxRecognizer extends SphinxBaseRecognizer {
 		sphinxConfig.setDictionaryPath(dicPath.toAbsolutePath().toUri().toURL().toString());
 		sphinxConfig.setLanguageModelPath(lmPath.toAbsolutePath().toUri().toURL().toString());
 
-		stt = new SphinxSpeechRecognizer(sphinxConfig, audio);
+		if (stateGrammars)
+			prepareGrammars();
+		usingGrammars = allGrammar != null;
+		if (usingGrammars) {
+			String grammar = grammarFor(stateMachine.getCurrentState());
+			sphinxConfig.setGrammarPath(getGrammarLocation());
+			sphinxConfig.setGrammarName(grammar);
+			sphinxConfig.setUseGrammar(true);
+			stt = new SphinxSpeechRecognizer(sphinxConfig, audio, grammar);
+			stateMachine.current.addListener(stateListener);
+		} else
+			stt = new SphinxSpeechRecognizer(sphinxConfig, audio);
+	}
+
+	/**
+	 * Writes a grammar for the commands of each state next to the current model. Sphinx only keeps one grammar in memory, but it is small and the files are
+	 * ready, so switching only takes a few milliseconds.
+	 */
+	protected void prepareGrammars() throws IOException {
+		grammars.clear();
+		allGrammar = null;
+		if (commands.isEmpty())
+			return;
+		long time = System.nanoTime();
+		allGrammar = addGrammar(commands);
+		for (ContextState state : stateMachine.getStates()) {
+			Set<String> available = new HashSet<>(stateMachine.getAvailableCommands(state));
+			available.remove(null);
+			available.remove("");
+			// Words that are not in the model are not in the dictionary either. This happens while reloading, until the new model is ready.
+			if (!available.isEmpty() && commands.containsAll(available))
+				grammars.put(state, addGrammar(available));
+		}
+		log.debug("Prepared the grammars of " + grammars.size() + " states in " + (System.nanoTime() - time) / 1000000 + "ms");
+	}
+
+	protected String addGrammar(Set<String> commands) throws IOException {
+		CommandGrammar grammar = new CommandGrammar(commands);
+		model.addGrammar(grammar.getFileName(), grammar.toJsgf());
+		return grammar.getName();
+	}
+
+	protected String getGrammarLocation() throws IOException {
+		return model.getGrammarDirectory().toAbsolutePath().toUri().toURL().toString();
+	}
+
+	/** The grammar to use in a given state. States without commands of their own get the one with all commands. */
+	protected String grammarFor(ContextState state) {
+		return grammars.getOrDefault(state, allGrammar);
+	}
+
+	/** Called when the state changes, so that only the commands of the new state get searched */
+	protected void switchGrammar(ContextState state) {
+		if (stt != null && usingGrammars)
+			stt.setGrammar(grammarFor(state));
 	}
 
 	@Override
@@ -56,6 +125,44 @@ public class SphinxRecognizer extends SphinxBaseRecognizer {
 		log.debug("Not listening anymore");
 	}
 
+	/** Points the recognizer to the new model. It gets loaded when the recognizer is allocated on the next start, while the acoustic model stays loaded. */
+	@Override
+	public boolean updateCommands(Set<String> commands) {
+		try {
+			prepareModel(commands);
+			stt.setModel(lmPath.toAbsolutePath().toUri().toURL().toString(), dicPath.toAbsolutePath().toUri().toURL().toString());
+			if (stateGrammars)
+				prepareGrammars();
+			// Switching between the language model and grammars needs a new recognizer
+			if (usingGrammars != (allGrammar != null))
+				return false;
+			if (usingGrammars)
+				stt.setGrammarLocation(getGrammarLocation(), grammarFor(stateMachine.getCurrentState()));
+			return true;
+		} catch (IOException e) {
+			log.warn("Could not update the language model", e);
+			return false;
+		}
+	}
+
+	/** Moves the grammars to the new state machine. If the commands changed, {@link #updateCommands(Set)} will follow and update them again. */
+	@Override
+	public boolean rebind(VoiceState stateMachine, Settings settings) {
+		this.stateMachine.current.removeListener(stateListener);
+		super.rebind(stateMachine, settings);
+		if (usingGrammars) {
+			try {
+				prepareGrammars();
+			} catch (IOException e) {
+				log.warn("Could not update the grammars", e);
+				return false;
+			}
+			stateMachine.current.addListener(stateListener);
+			switchGrammar(stateMachine.getCurrentState());
+		}
+		return true;
+	}
+
 	@Override
 	public void deafenRecognition(boolean deaf) {
 		super.deafenRecognition(deaf);
@@ -68,6 +175,8 @@ public class SphinxRecognizer extends SphinxBaseRecognizer {
 		log.debug("Starting SphinxRecognizer");
 		try {
 			stt.startRecognition(true);
+			// The state may have changed while stopped
+			switchGrammar(stateMachine.getCurrentState());
 		} catch (LineUnavailableException | IOException e) {
 			e.printStackTrace();
 		}
@@ -100,6 +209,7 @@ public class SphinxRecognizer extends SphinxBaseRecognizer {
 
 	@Override
 	public void unload() {
+		stateMachine.current.removeListener(stateListener);
 		stt = null;
 	}
 
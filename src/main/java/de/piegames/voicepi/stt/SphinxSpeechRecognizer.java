@@ -4,32 +4,54 @@ import java.io.IOException;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import de.piegames.voicepi.audio.Audio;
 import de.piegames.voicepi.audio.ToggleAudioInputStream;
 import de.piegames.voicepi.audio.ToggleAudioInputStream.State;
 import edu.cmu.sphinx.api.AbstractSpeechRecognizer;
 import edu.cmu.sphinx.api.Configuration;
+import edu.cmu.sphinx.api.SpeechResult;
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
 
 public class SphinxSpeechRecognizer extends AbstractSpeechRecognizer {
 
+	private static final Log		log	= LogFactory.getLog(SphinxSpeechRecognizer.class);
+
 	private Audio					in;
+	private AudioInputStream		stream;
 	private ToggleAudioInputStream	inputStream;
+	private boolean					deaf;
+	/** The grammar currently in use, and the one to switch to before the next search */
+	private String					grammar, nextGrammar;
 
 	public SphinxSpeechRecognizer(Configuration configuration, Audio in) throws IOException {
 		super(configuration);
 		this.in = in;
 	}
 
+	/** Uses the grammar that is set in the configuration, so that it can be {@link #setGrammar(String) switched} later on */
+	public SphinxSpeechRecognizer(Configuration configuration, Audio in, String grammar) throws IOException {
+		this(configuration, in);
+		this.grammar = grammar;
+	}
+
 	public void startRecognition(boolean clear) throws LineUnavailableException, IOException {
-		AudioInputStream stream = in.normalListening(Audio.FORMAT);
-		inputStream = new ToggleAudioInputStream(stream, stream.getFormat(), AudioSystem.NOT_SPECIFIED);
+		stream = in.normalListening(Audio.FORMAT);
 		// context.getInstance(StreamDataSource.class)
 		// .setInputStream(inputStream);
 		recognizer.allocate();
+		synchronized (this) {
+			deaf = false;
+			inputStream = newInputStream();
+		}
 		context.setSpeechSource(inputStream);
 	}
 
-	public void stopRecognition1() throws IOException {
+	public synchronized void stopRecognition1() throws IOException {
+		nextGrammar = null;
 		inputStream.state.set(State.EOF);
 		inputStream.close();
 	}
@@ -38,7 +60,70 @@ public class SphinxSpeechRecognizer extends AbstractSpeechRecognizer {
 		recognizer.deallocate();
 	}
 
-	public void setDeaf(boolean deaf) {
+	/**
+	 * Sets the language model and dictionary to use. This must only be called while the recognizer is stopped. The new files are loaded when it gets
+	 * allocated again, without loading the acoustic model again.
+	 */
+	public void setModel(String languageModel, String dictionary) {
+		context.setLocalProperty("simpleNGramModel->location", languageModel);
+		context.setLocalProperty("dictionary->dictionaryPath", dictionary);
+	}
+
+	/** Sets where the grammars are and which one to use. Like {@link #setModel(String, String)}, this must only be called while the recognizer is stopped. */
+	public synchronized void setGrammarLocation(String location, String grammar) {
+		context.setLocalProperty("jsgfGrammar->grammarLocation", location);
+		context.setLocalProperty("jsgfGrammar->grammarName", grammar);
+		this.grammar = grammar;
+		nextGrammar = null;
+	}
+
+	/**
+	 * Switches to another grammar while the recognizer is running. The search that is currently going on still uses the old grammar, so it gets cut off and its
+	 * result is dropped. The next search then uses the new one. This may be called from any thread.
+	 */
+	public synchronized void setGrammar(String grammar) {
+		if (grammar.equals(nextGrammar != null ? nextGrammar : this.grammar))
+			return;
+		log.debug("Switching to grammar " + grammar);
+		nextGrammar = grammar;
+		if (inputStream != null)
+			inputStream.state.set(State.EOF);
+	}
+
+	/** Returns the next result, or {@code null} if there is none or the search was cut off because the grammar changed */
+	@Override
+	public SpeechResult getResult() {
+		synchronized (this) {
+			if (nextGrammar != null) {
+				try {
+					// The linguist notices the change and compiles the new grammar when the next search starts
+					context.getInstance(JSGFGrammar.class).loadJSGF(nextGrammar);
+					grammar = nextGrammar;
+				} catch (IOException | JSGFGrammarParseException | JSGFGrammarException e) {
+					log.warn("Could not switch to grammar " + nextGrammar + ", staying with " + grammar, e);
+				}
+				nextGrammar = null;
+				// The old stream has been ended to cut off the search, the audio continues in a new one
+				inputStream = newInputStream();
+				context.setSpeechSource(inputStream);
+			}
+		}
+		SpeechResult result = super.getResult();
+		synchronized (this) {
+			return nextGrammar != null ? null : result;
+		}
+	}
+
+	public synchronized void setDeaf(boolean deaf) {
+		this.deaf = deaf;
+		// A stream that has been cut off must stay at its end
+		if (inputStream.state.get() != State.EOF)
+			inputStream.state.set(deaf ? State.DEAF : State.LISTENING);
+	}
+
+	private ToggleAudioInputStream newInputStream() {
+		ToggleAudioInputStream inputStream = new ToggleAudioInputStream(stream, stream.getFormat(), AudioSystem.NOT_SPECIFIED);
 		inputStream.state.set(deaf ? State.DEAF : State.LISTENING);
+		return inputStream;
 	}
 }
@@ -10,6 +10,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import de.piegames.voicepi.VoicePi;
 import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.audio.Playback.Category;
 
 /**
  * A speech synthesizing engine will take in text, synthesize audio data saying that text and play it ("text to speech", <i>TTS</i>). A {@code SpeechEngine}
@@ -59,7 +60,7 @@ public abstract class SpeechEngine {
 		if (ais == null)
 			return false;
 		try {
-			control.getAudio().play(ais);
+			control.getAudio().play(ais, Category.SPEECH);
 			return true;
 		} catch (IOException e) {
 			log.warn("Could not speak text: ", e);
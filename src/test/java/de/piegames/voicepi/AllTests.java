@@ -3,10 +3,23 @@ package de.piegames.voicepi;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
+import de.piegames.voicepi.audio.AudioMixerTest;
+import de.piegames.voicepi.audio.AudioTest;
+import de.piegames.voicepi.audio.CircularByteBufferTest;
+import de.piegames.voicepi.audio.DirectCircularByteBufferTest;
+import de.piegames.voicepi.audio.PcmEnergyTest;
+import de.piegames.voicepi.audio.ReplayAudioTest;
+import de.piegames.voicepi.audio.ResamplerTest;
+import de.piegames.voicepi.audio.SoundCacheTest;
+import de.piegames.voicepi.audio.SpeechDetectorTest;
+import de.piegames.voicepi.audio.WavFileTest;
 import de.piegames.voicepi.state.VoiceStateTest;
+import de.piegames.voicepi.stt.CommandGrammarTest;
+import de.piegames.voicepi.stt.NGramModelTest;
+import de.piegames.voicepi.stt.PronunciationDictionaryTest;
 
 @RunWith(Suite.class)
-@SuiteClasses({ VoicePiTest.class, VoiceStateTest.class, MultiRecognizerTest.class })
+@SuiteClasses({ VoicePiTest.class, CommandsCacheTest.class, VoiceStateTest.class, MultiRecognizerTest.class, CircularByteBufferTest.class, DirectCircularByteBufferTest.class, PcmEnergyTest.class, SpeechDetectorTest.class, AudioTest.class, AudioMixerTest.class, SoundCacheTest.class, WavFileTest.class, ReplayAudioTest.class, ReplayTest.class, ResamplerTest.class, NGramModelTest.class, PronunciationDictionaryTest.class, CommandGrammarTest.class })
 public class AllTests {
 
 }
@@ -0,0 +1,89 @@
+package de.piegames.voicepi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import de.piegames.voicepi.CommandsCache.CacheElement;
+
+public class CommandsCacheTest {
+
+	private static Set<String> commands(String... commands) {
+		return new HashSet<>(Arrays.asList(commands));
+	}
+
+	private static String read(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+	}
+
+	/** Entries are found by their commands in any order and survive reloading the index */
+	@Test
+	public void testHit() throws IOException {
+		Path directory = Files.createTempDirectory("voicepi-cache");
+		CommandsCache cache = new CommandsCache(directory);
+		cache.loadIndex();
+		assertFalse(cache.check(commands("EXIT", "RELOAD")).isPresent());
+		cache.addToCache(commands("EXIT", "RELOAD"), "lm", "dic");
+		cache.saveIndex(10);
+		assertEquals(CommandsCache.key(commands("RELOAD", "EXIT")), CommandsCache.key(commands("EXIT", "RELOAD")));
+
+		cache = new CommandsCache(directory);
+		cache.loadIndex();
+		CacheElement hit = cache.check(commands("RELOAD", "EXIT")).get();
+		assertEquals("lm", read(hit.getLmPath()));
+		assertEquals("dic", read(hit.getDicPath()));
+		assertFalse(cache.check(commands("EXIT")).isPresent());
+	}
+
+	/** The least recently used entries get evicted together with their files */
+	@Test
+	public void testEviction() throws IOException, InterruptedException {
+		Path directory = Files.createTempDirectory("voicepi-cache");
+		CommandsCache cache = new CommandsCache(directory);
+		cache.loadIndex();
+		CacheElement a = cache.addToCache(commands("A"), "a", "a");
+		Thread.sleep(5);
+		CacheElement b = cache.addToCache(commands("B"), "b", "b");
+		b.addGrammar("b.gram", "grammar");
+		Thread.sleep(5);
+		// A is older but was used more recently
+		cache.check(commands("A"));
+		Thread.sleep(5);
+		cache.addToCache(commands("C"), "c", "c");
+		cache.saveIndex(2);
+		assertEquals(2, cache.size());
+		assertTrue(cache.check(commands("A")).isPresent());
+		assertFalse(cache.check(commands("B")).isPresent());
+		assertTrue(Files.exists(a.getLmPath()));
+		assertFalse(Files.exists(b.getGrammarDirectory()));
+		// Two entries with two files each, and the index. No temporary files left.
+		assertEquals(5, Files.list(directory).count());
+	}
+
+	/** Using an entry again shortly after does not write anything */
+	@Test
+	public void testNoWriteOnHit() throws IOException {
+		Path directory = Files.createTempDirectory("voicepi-cache");
+		CommandsCache cache = new CommandsCache(directory);
+		cache.loadIndex();
+		cache.addToCache(commands("EXIT"), "lm", "dic");
+		cache.saveIndex(10);
+		Path index = directory.resolve(CommandsCache.INDEX);
+		FileTime modified = Files.getLastModifiedTime(index);
+
+		cache = new CommandsCache(directory);
+		cache.loadIndex();
+		assertTrue(cache.check(commands("EXIT")).isPresent());
+		cache.saveIndex(10);
+		assertEquals(modified, Files.getLastModifiedTime(index));
+		assertFalse(cache.dirty);
+	}
+}
@@ -0,0 +1,94 @@
+package de.piegames.voicepi;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.Test;
+import com.google.gson.JsonObject;
+import de.piegames.voicepi.Replay.Result;
+import de.piegames.voicepi.audio.Audio;
+import de.piegames.voicepi.stt.SpeechRecognizer;
+
+public class ReplayTest {
+
+	/** Writes a file with a square wave of the given volumes, each one lasting for a second */
+	private static File createFile(float... volumes) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(volumes.length * 32000).order(ByteOrder.LITTLE_ENDIAN);
+		for (float volume : volumes)
+			for (int i = 0; i < 16000; i++)
+				data.putShort((short) ((i % 2 == 0 ? 1 : -1) * volume * 32768));
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data.array()), Audio.FORMAT, volumes.length * 16000), Type.WAVE, file);
+		return file;
+	}
+
+	/**
+	 * A replay with a recognizer that reads a single stream, like the Sphinx recognizer, ends once it reached the end of the file. The last command is only
+	 * recognized at the end and must not get lost.
+	 */
+	@Test(timeout = 30000)
+	public void testReplay() throws IOException, InterruptedException, URISyntaxException {
+		Replay replay = new Replay(Paths.get(getClass().getResource("/replayconfig.json").toURI()), 0);
+		Result result = replay.replay(createFile(0.002f, 0.1f, 0.002f, 0.002f, 0.1f));
+		assertEquals(Arrays.asList(Arrays.asList("TEST"), Arrays.asList("TEST")), result.commands);
+		assertEquals(5, result.audioSeconds, 0.01f);
+	}
+
+	/** Reports a command for every loud part of the audio. It reads a single stream and keeps running after it ended, until it gets stopped. */
+	public static class LoudnessRecognizer extends SpeechRecognizer {
+
+		public LoudnessRecognizer(JsonObject config) {
+			super(config);
+		}
+
+		@Override
+		public void run() {
+			try (AudioInputStream in = audio.normalListening(Audio.FORMAT)) {
+				byte[] frame = new byte[3200];
+				boolean loud = false, ended = false;
+				while (!Thread.currentThread().isInterrupted()) {
+					if (ended) {
+						LockSupport.parkNanos(1000000);
+						continue;
+					}
+					int read = in.read(frame);
+					if (read < 0) {
+						ended = true;
+						// Take some time, like a recognizer finishing its last search
+						LockSupport.parkNanos(100000000);
+						if (loud)
+							commandSpoken("TEST");
+						continue;
+					}
+					int peak = 0;
+					for (int i = 0; i + 1 < read; i += 2)
+						peak = Math.max(peak, Math.abs((short) ((frame[i] & 0xFF) | frame[i + 1] << 8)));
+					if (peak > 1000 && !loud)
+						loud = true;
+					else if (peak <= 1000 && loud) {
+						loud = false;
+						commandSpoken("TEST");
+					}
+				}
+			} catch (IOException e) {
+				log.warn("Could not read the audio", e);
+			}
+		}
+
+		@Override
+		public boolean transcriptionSupported() {
+			return false;
+		}
+	}
+}
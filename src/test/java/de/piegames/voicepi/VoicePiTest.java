@@ -1,6 +1,7 @@
 package de.piegames.voicepi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
@@ -65,6 +66,22 @@ public class VoicePiTest {
 		tts = (QueueEngine) control.getTTS();
 	}
 
+	/** Reloading an unchanged configuration must keep the audio, the recognizer and the speech engine running */
+	@Test
+	public void reloadKeepsComponents() throws InterruptedException {
+		assertEquals("Starting VoicePi", tts.spoken.poll(timeout, TimeUnit.SECONDS));
+		Object audio = control.getAudio();
+		stt.commandSpoken("ACTIVATE");
+		assertEquals("Yes, sir", tts.spoken.poll(timeout, TimeUnit.SECONDS));
+		stt.commandSpoken("RELOAD");
+		assertEquals("OK", tts.spoken.poll(timeout, TimeUnit.SECONDS));
+		assertEquals("Reloading", tts.spoken.poll(timeout, TimeUnit.SECONDS));
+		Thread.sleep(1000);
+		assertSame(audio, control.getAudio());
+		assertSame(stt, control.getSTT());
+		assertSame(tts, control.getTTS());
+	}
+
 	/** This test will load the same configuration, but use a more advanced ActionModule with different state. */
 	@Test
 	public void multistateTest() throws IOException, InterruptedException {
@@ -0,0 +1,111 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import javax.sound.sampled.AudioInputStream;
+import org.junit.Test;
+import de.piegames.voicepi.audio.Playback.Category;
+
+public class AudioMixerTest {
+
+	/** A constant signal of the given length in seconds in {@link Audio#FORMAT} */
+	private static AudioInputStream createStream(float volume, float seconds) {
+		int frames = (int) (16000 * seconds);
+		ByteBuffer data = ByteBuffer.allocate(frames * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < frames; i++)
+			data.putShort((short) (volume * 32768));
+		return new AudioInputStream(new ByteArrayInputStream(data.array()), Audio.FORMAT, frames);
+	}
+
+	/** Mixes blocks of 160 frames until nothing plays anymore, not faster than an output at 16kHz would so the feeders can keep up */
+	private static float[] mixAll(AudioMixer mixer, int channels) throws InterruptedException {
+		float[] all = new float[0];
+		float[] block = new float[160 * channels];
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mixer.isActive() && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		while (mixer.isActive() && System.currentTimeMillis() < deadline) {
+			if (mixer.mix(block, 160)) {
+				all = Arrays.copyOf(all, all.length + block.length);
+				System.arraycopy(block, 0, all, all.length - block.length, block.length);
+			}
+			Thread.sleep(10);
+		}
+		return all;
+	}
+
+	@Test
+	public void testGain() throws IOException, InterruptedException {
+		try (AudioMixer mixer = new AudioMixer(16000, 1, 0.5f, 0)) {
+			Playback playback = mixer.play(createStream(0.5f, 0.5f), Category.SOUND, 0.5f);
+			float[] mixed = mixAll(mixer, 1);
+			playback.await();
+			assertTrue(playback.isDone());
+			int nonZero = 0;
+			for (float sample : mixed)
+				if (sample != 0) {
+					assertEquals(0.25f, sample, 0.001f);
+					nonZero++;
+				}
+			assertEquals(8000, nonZero);
+		}
+	}
+
+	/** Speech gets ducked while an alert plays and comes back afterwards */
+	@Test
+	public void testDucking() throws IOException, InterruptedException {
+		try (AudioMixer mixer = new AudioMixer(16000, 1, 0.5f, 0.01f)) {
+			mixer.play(createStream(0.4f, 2f), Category.SPEECH, 1);
+			Thread.sleep(100);
+			mixer.mix(new float[160], 160);
+			Playback alert = mixer.play(createStream(0.1f, 0.5f), Category.ALERT, 1);
+			float[] mixed = mixAll(mixer, 1);
+			alert.await();
+			int ducked = 0, normal = 0;
+			for (float sample : mixed) {
+				assertTrue(sample <= 0.5f + 0.001f);
+				if (Math.abs(sample - (0.4f * 0.5f + 0.1f)) < 0.001f)
+					ducked++;
+				if (Math.abs(sample - 0.4f) < 0.001f)
+					normal++;
+			}
+			// Ducked speech plus the alert for the whole alert except the fades, and speech alone afterwards
+			assertEquals(8000, ducked, 2 * 160);
+			assertTrue(normal > 8000);
+		}
+	}
+
+	/** Mono speech in 16kHz gets converted to the mixer's format */
+	@Test
+	public void testConversion() throws IOException, InterruptedException {
+		try (AudioMixer mixer = new AudioMixer(44100, 2, 0.5f, 0)) {
+			mixer.play(createStream(0.5f, 0.5f), Category.SOUND, 1);
+			float[] mixed = mixAll(mixer, 2);
+			int nonZero = 0;
+			for (float sample : mixed)
+				if (sample != 0)
+					nonZero++;
+			assertEquals(44100, nonZero, 2 * 160);
+		}
+	}
+
+	@Test
+	public void testSoftClip() {
+		assertEquals(0.5f, AudioMixer.softClip(0.5f), 0);
+		assertEquals(-0.8f, AudioMixer.softClip(-0.8f), 0);
+		float last = 0.8f;
+		for (float sample = 0.9f; sample < 10; sample += 0.1f) {
+			float clipped = AudioMixer.softClip(sample);
+			assertTrue(clipped >= last);
+			assertTrue(clipped <= 1);
+			last = clipped;
+		}
+		assertFalse(Math.abs(AudioMixer.softClip(-5)) > 1);
+	}
+}
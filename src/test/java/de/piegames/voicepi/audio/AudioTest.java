@@ -0,0 +1,144 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.Test;
+import com.google.gson.JsonObject;
+
+public class AudioTest {
+
+	/** Writes a file with a square wave of the given volumes, each one lasting for a second */
+	private static File createFile(float... volumes) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(volumes.length * 32000).order(ByteOrder.LITTLE_ENDIAN);
+		for (float volume : volumes)
+			for (int i = 0; i < 16000; i++)
+				data.putShort((short) ((i % 2 == 0 ? 1 : -1) * volume * 32768));
+		return createFile(data.array());
+	}
+
+	private static File createFile(byte[] data) throws IOException {
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), Audio.FORMAT, data.length / 2), Type.WAVE, file);
+		return file;
+	}
+
+	/** White noise of the given volumes (RMS), each one lasting for a second. Unlike a square wave, every part of it can be told apart from the others. */
+	private static byte[] noise(float... volumes) {
+		Random random = new Random(42);
+		ByteBuffer data = ByteBuffer.allocate(volumes.length * 32000).order(ByteOrder.LITTLE_ENDIAN);
+		for (float volume : volumes)
+			for (int i = 0; i < 16000; i++)
+				data.putShort((short) ((random.nextFloat() * 2 - 1) * Math.sqrt(3) * volume * 32768));
+		return data.array();
+	}
+
+	/** Records a command from the given audio data and checks that it is an unchanged copy of the data, returning its start and end in seconds */
+	private static float[] recordCommand(JsonObject config, byte[] data) throws IOException {
+		Audio audio = new FileAudio(config, createFile(data), null);
+		audio.init();
+		try (AudioSegment command = audio.recordCommand(null)) {
+			assertNotNull(command);
+			byte[] recorded = command.toByteArray();
+			int start = indexOf(data, Arrays.copyOf(recorded, 64));
+			assertTrue(start >= 0);
+			assertEquals(0, start % Audio.FORMAT.getFrameSize());
+			assertArrayEquals(Arrays.copyOfRange(data, start, start + recorded.length), recorded);
+			return new float[] { start / 32000f, (start + recorded.length) / 32000f };
+		} finally {
+			audio.close();
+		}
+	}
+
+	private static int indexOf(byte[] data, byte[] part) {
+		search: for (int i = 0; i <= data.length - part.length; i++) {
+			for (int j = 0; j < part.length; j++)
+				if (data[i + j] != part[j])
+					continue search;
+			return i;
+		}
+		return -1;
+	}
+
+	/** The command gets streamed while it is being recorded, the streamed audio starts like the recorded command */
+	@Test
+	public void testStreaming() throws IOException {
+		JsonObject config = new JsonObject();
+		config.addProperty("pre-roll", 0.25f);
+		config.addProperty("post-roll", 0.25f);
+		Audio audio = new FileAudio(config, createFile(0.01f, 0.01f, 0.1f, 0.005f, 0.005f), null);
+		audio.init();
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		boolean[] events = new boolean[2];
+		CommandListener listener = new CommandListener() {
+
+			@Override
+			public void commandStarted(AudioFormat format) {
+				events[0] = true;
+			}
+
+			@Override
+			public void commandAudio(AudioSegment audio) {
+				byte[] piece = audio.toByteArray();
+				streamed.write(piece, 0, piece.length);
+			}
+
+			@Override
+			public void commandFinished(boolean aborted) {
+				events[1] = !aborted;
+			}
+		};
+		try (AudioSegment command = audio.recordCommand(listener)) {
+			assertTrue(events[0]);
+			assertTrue(events[1]);
+			byte[] recorded = command.toByteArray();
+			// About one second of speech, plus pre- and post-roll, give or take a chunk
+			assertEquals(1.5f, command.getFrameLength() / 16000f, 0.07f);
+			assertTrue(streamed.size() >= recorded.length);
+			assertArrayEquals(recorded, Arrays.copyOf(streamed.toByteArray(), recorded.length));
+		}
+		audio.close();
+	}
+
+	/** The command is recorded correctly after the capture buffer has wrapped around several times */
+	@Test
+	public void testWrapAround() throws IOException {
+		JsonObject config = new JsonObject();
+		config.addProperty("command-buffer-size", 3f);
+		config.addProperty("pre-roll", 0.25f);
+		config.addProperty("post-roll", 0.25f);
+		float[] command = recordCommand(config, noise(0.01f, 0.01f, 0.01f, 0.01f, 0.01f, 0.01f, 0.01f, 0.1f, 0.002f, 0.002f));
+		// One second of speech starting after 7s, plus pre- and post-roll, give or take a chunk
+		assertEquals(6.75f, command[0], 0.07f);
+		assertEquals(8.25f, command[1], 0.07f);
+	}
+
+	/** A command that is longer than the capture buffer gets cut off so that it still fits, including its pre- and post-roll */
+	@Test
+	public void testLongCommand() throws IOException {
+		JsonObject config = new JsonObject();
+		config.addProperty("command-buffer-size", 2f);
+		config.addProperty("pre-roll", 0.25f);
+		config.addProperty("post-roll", 0.25f);
+		float[] command = recordCommand(config, noise(0.01f, 0.01f, 0.01f, 0.1f, 0.1f, 0.1f, 0.1f, 0.002f, 0.002f));
+		assertEquals(2.75f, command[0], 0.07f);
+		assertTrue(command[1] - command[0] <= 2);
+		// The speech gets cut after 2s - pre-roll - post-roll, the post-roll has not been recorded yet
+		assertEquals(1.75f, command[1] - command[0], 0.07f);
+	}
+}
@@ -0,0 +1,353 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+public class CircularByteBufferTest {
+
+	/** Creates the buffer to test, so that subclasses can run the same tests */
+	protected CircularByteBuffer newBuffer(int capacity) {
+		return new CircularByteBuffer(capacity);
+	}
+
+	/** Tests the legacy FIFO behavior: put only as much as fits, get in order, wrap around the end of the array */
+	@Test
+	public void testFifo() {
+		CircularByteBuffer buffer = newBuffer(8);
+		assertEquals(6, buffer.put(new byte[] { 1, 2, 3, 4, 5, 6 }));
+		byte[] dst = new byte[4];
+		assertEquals(4, buffer.get(dst));
+		assertEquals(2, buffer.available());
+		assertEquals(6, buffer.free());
+		// Only 6 bytes are free, the rest gets dropped
+		assertEquals(6, buffer.put(new byte[] { 7, 8, 9, 10, 11, 12, 13 }));
+		assertEquals(0, buffer.put(new byte[] { 14 }));
+		assertEquals(5, buffer.peek());
+		dst = new byte[10];
+		assertEquals(8, buffer.get(dst));
+		for (int i = 0; i < 8; i++)
+			assertEquals(i + 5, dst[i]);
+		assertEquals(-1, buffer.get());
+		assertEquals(0, buffer.get(dst));
+	}
+
+	/** Multiple readers have independent positions and only get data written after their creation */
+	@Test
+	public void testReaders() {
+		CircularByteBuffer buffer = newBuffer(16);
+		buffer.write(new byte[] { 1, 2, 3 });
+		CircularByteBuffer.Reader a = buffer.newReader();
+		buffer.write(new byte[] { 4, 5 });
+		CircularByteBuffer.Reader b = buffer.newReader();
+		buffer.write(new byte[] { 6 });
+
+		assertEquals(3, a.available());
+		assertEquals(1, b.available());
+		assertEquals(4, a.get());
+		assertEquals(6, b.get());
+		assertEquals(-1, b.get());
+		assertEquals(2, a.available());
+	}
+
+	/** Readers may start in the past, but not before the oldest data in the buffer */
+	@Test
+	public void testLookback() {
+		CircularByteBuffer buffer = newBuffer(8);
+		buffer.write(new byte[] { 1, 2, 3 });
+		assertEquals(1, buffer.newReader(5).get());
+		assertEquals(2, buffer.newReader(2).get());
+		buffer.write(new byte[] { 4, 5, 6, 7, 8, 9, 10 });
+		assertEquals(3, buffer.newReader(20).get());
+		assertEquals(8, buffer.newReader(20).available());
+	}
+
+	/** A reader that is too slow loses the oldest data and continues with the oldest data still present */
+	@Test
+	public void testOverrun() {
+		CircularByteBuffer buffer = newBuffer(8);
+		CircularByteBuffer.Reader reader = buffer.newReader();
+		for (byte i = 0; i < 20; i++)
+			buffer.write(new byte[] { i });
+		assertEquals(8, reader.available());
+		byte[] dst = new byte[8];
+		assertEquals(8, reader.get(dst, 0, 8));
+		for (int i = 0; i < 8; i++)
+			assertEquals(i + 12, dst[i]);
+		assertEquals(20, reader.getPosition());
+	}
+
+	/** Slices are contiguous even if the data wraps around the end of the buffer, and pinned data does not get overwritten */
+	@Test
+	public void testSliceAndPin() {
+		CircularByteBuffer buffer = newBuffer(8);
+		buffer.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+		buffer.write(new byte[] { 7, 8, 9, 10 });
+		ByteBuffer slice = buffer.slice(4, 6);
+		for (int i = 5; i <= 10; i++)
+			assertEquals(i, slice.get());
+
+		CircularByteBuffer.Pin pin = buffer.pin(6);
+		// Only the four bytes before the pinned data may be overwritten
+		assertEquals(4, buffer.write(new byte[] { 11, 12, 13, 14, 15 }));
+		assertEquals(7, buffer.slice(6, 1).get());
+		pin.close();
+		assertEquals(3, buffer.write(new byte[] { 15, 16, 17 }));
+		assertEquals(10, buffer.slice(9, 8).get());
+	}
+
+	/** A pin that gets added after a write checked the pins, but before it claimed its space, is still respected by that write */
+	@Test
+	public void testPinDuringWrite() {
+		CircularByteBuffer.Pin[] pin = new CircularByteBuffer.Pin[1];
+		CircularByteBuffer buffer = new CircularByteBuffer(8) {
+
+			@Override
+			protected long pinnedLimit(long w) {
+				long limit = super.pinnedLimit(w);
+				if (w == 8 && pin[0] == null)
+					pin[0] = pin(4);
+				return limit;
+			}
+		};
+		buffer.write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 });
+		assertEquals(4, buffer.write(new byte[] { 8, 9, 10, 11, 12, 13 }));
+		assertEquals(4, pin[0].getPosition());
+		ByteBuffer slice = buffer.slice(4, 4);
+		for (int i = 4; i < 8; i++)
+			assertEquals(i, slice.get());
+	}
+
+	/** One producer thread, two concurrent consumers. The data has to arrive complete (for the fast one) and in order (for both) */
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final int total = 1 << 22;
+		CircularByteBuffer buffer = newBuffer(4096);
+		CircularByteBuffer.Reader fast = buffer.newReader();
+		CircularByteBuffer.Reader slow = buffer.newReader();
+		long[] fastResult = new long[1];
+		boolean[] slowInOrder = { true };
+
+		Thread producer = new Thread(() -> {
+			byte[] chunk = new byte[256];
+			long i = 0;
+			while (i < total) {
+				// Put blocks for the built-in reader, which is read by the fast consumer in lockstep
+				while (buffer.free() < chunk.length)
+					Thread.yield();
+				for (int j = 0; j < chunk.length; j++)
+					chunk[j] = (byte) i++;
+				buffer.put(chunk);
+			}
+		});
+		Thread fastConsumer = new Thread(() -> {
+			byte[] dst = new byte[300];
+			long count = 0;
+			while (count < total) {
+				int read = fast.get(dst, 0, dst.length);
+				buffer.skip(read);
+				for (int j = 0; j < read; j++)
+					if (dst[j] != (byte) (count++))
+						return;
+			}
+			fastResult[0] = count;
+		});
+		// The slow consumer will be overrun regularly, but the data it gets must never be torn
+		Thread slowConsumer = new Thread(() -> {
+			byte[] dst = new byte[17];
+			while (slow.getPosition() < total) {
+				int read = slow.get(dst, 0, dst.length);
+				// Consecutive bytes within one read
+				for (int j = 1; j < read; j++)
+					if ((byte) (dst[j - 1] + 1) != dst[j])
+						slowInOrder[0] = false;
+			}
+		});
+		producer.start();
+		fastConsumer.start();
+		slowConsumer.start();
+		producer.join(10000);
+		fastConsumer.join(10000);
+		slowConsumer.join(10000);
+		assertEquals(total, fastResult[0]);
+		assertTrue(slowInOrder[0]);
+	}
+
+	/**
+	 * One producer races several readers that get overrun all the time, and the buffer's capacity is not a power of two. Every byte a reader accepts must be
+	 * the one that was written at its position, an overwritten one would have a different value.
+	 */
+	@Test
+	public void testStress() throws InterruptedException {
+		final long total = 1 << 24;
+		CircularByteBuffer buffer = newBuffer(1000);
+		AtomicLong checked = new AtomicLong(), torn = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		threads.add(new Thread(() -> {
+			byte[] chunk = new byte[97];
+			for (long p = 0; p < total; p += chunk.length) {
+				for (int j = 0; j < chunk.length; j++)
+					chunk[j] = (byte) (p + j);
+				buffer.write(chunk);
+			}
+			buffer.close();
+		}));
+		for (int i = 0; i < Math.max(3, Runtime.getRuntime().availableProcessors()); i++) {
+			CircularByteBuffer.Reader reader = buffer.newReader();
+			int size = 1 + 131 * i;
+			threads.add(new Thread(() -> {
+				byte[] dst = new byte[size];
+				while (!buffer.isClosed() || reader.available() > 0) {
+					int read;
+					if (size == 1) {
+						int value = reader.get();
+						read = value < 0 ? 0 : 1;
+						dst[0] = (byte) value;
+					} else
+						read = reader.get(dst, 0, dst.length);
+					long pos = reader.position.get() - read;
+					for (int j = 0; j < read; j++)
+						if (dst[j] != (byte) (pos + j))
+							torn.incrementAndGet();
+					checked.addAndGet(read);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join(60000);
+		assertTrue(checked.get() > 0);
+		assertEquals(0, torn.get());
+	}
+
+	/** Blocking streams sleep until the producer writes, the timeout passes, the buffer gets closed or they get interrupted */
+	@Test
+	public void testBlocking() throws IOException, InterruptedException {
+		CircularByteBuffer buffer = newBuffer(64);
+		CircularBufferInputStream in = new CircularBufferInputStream(buffer.newReader(), true);
+		byte[] data = new byte[16];
+
+		in.setTimeout(50, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		assertEquals(0, in.read(data));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		in.setTimeout(10, TimeUnit.SECONDS);
+		Thread producer = new Thread(() -> {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+			buffer.write(new byte[] { 1, 2, 3 });
+		});
+		producer.start();
+		start = System.nanoTime();
+		assertEquals(3, in.read(data));
+		// Woken up by the producer, not by the timeout
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		producer.join();
+
+		Thread closer = new Thread(() -> {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+			buffer.close();
+		});
+		closer.start();
+		assertEquals(-1, in.read(data));
+		closer.join();
+
+		CircularBufferInputStream other = new CircularBufferInputStream(newBuffer(64).newReader(), true);
+		Thread.currentThread().interrupt();
+		try {
+			other.read(data);
+			fail();
+		} catch (InterruptedIOException e) {
+			assertFalse(Thread.interrupted());
+		}
+	}
+
+	/** Without signaling, waiting threads still notice new data and closing still wakes them up */
+	@Test
+	public void testPolling() throws InterruptedException {
+		CircularByteBuffer buffer = newBuffer(64);
+		buffer.setSignaling(false);
+		Thread producer = new Thread(() -> {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+			buffer.write(new byte[] { 1, 2, 3 });
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+			buffer.close();
+		});
+		producer.start();
+		long start = System.nanoTime();
+		assertTrue(buffer.awaitData(0, 10, TimeUnit.SECONDS));
+		assertFalse(buffer.awaitData(3, 10, TimeUnit.SECONDS));
+		assertTrue(buffer.isClosed());
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		producer.join();
+	}
+
+	/** Overrun readers are counted, gating readers make the producer drop new data instead, until they get closed */
+	@Test
+	public void testOverrunPolicies() {
+		CircularByteBuffer buffer = newBuffer(8);
+		CircularByteBuffer.Reader lossy = buffer.newReader();
+		CircularByteBuffer.Reader gate = buffer.newReader();
+		gate.setOverrunPolicy(CircularByteBuffer.OverrunPolicy.DROP_NEWEST);
+		assertEquals(8, buffer.write(new byte[12]));
+		assertEquals(4, buffer.getBytesDropped());
+		assertEquals(2, gate.get(new byte[2], 0, 2));
+		assertEquals(2, buffer.write(new byte[4]));
+		assertEquals(6, buffer.getBytesDropped());
+		assertEquals(8, gate.getMaxLag());
+
+		// The lossy reader missed the first two bytes
+		assertEquals(8, lossy.get(new byte[8], 0, 8));
+		assertEquals(2, lossy.getBytesOverrun());
+		assertEquals(2, buffer.getBytesOverrun());
+		assertEquals(10, buffer.getBytesWritten());
+		assertEquals(8, buffer.getHighWaterMark());
+
+		gate.close();
+		assertEquals(4, buffer.write(new byte[4]));
+		assertEquals(6, buffer.getBytesDropped());
+	}
+
+	/** A blocking write waits for a slow blocking reader instead of dropping data */
+	@Test
+	public void testBlockingWrite() throws InterruptedException {
+		CircularByteBuffer buffer = newBuffer(8);
+		CircularByteBuffer.Reader reader = buffer.newReader();
+		reader.setOverrunPolicy(CircularByteBuffer.OverrunPolicy.BLOCK);
+		byte[] data = new byte[64];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < data.length; i += 4)
+				buffer.write(data, i, 4, 5, TimeUnit.SECONDS);
+		});
+		producer.start();
+		byte[] read = new byte[64];
+		int count = 0;
+		while (count < read.length) {
+			count += reader.get(read, count, Math.min(3, read.length - count));
+			LockSupport.parkNanos(100000);
+		}
+		producer.join();
+		for (int i = 0; i < data.length; i++)
+			assertEquals(data[i], read[i]);
+		assertEquals(0, buffer.getBytesDropped());
+		assertEquals(0, reader.getBytesOverrun());
+
+		// Nobody to wait for, so it does not block
+		reader.close();
+		buffer.newReader().setOverrunPolicy(CircularByteBuffer.OverrunPolicy.DROP_NEWEST);
+		assertEquals(8, buffer.write(data, 0, 12, 1, TimeUnit.HOURS));
+		assertEquals(4, buffer.getBytesDropped());
+	}
+}
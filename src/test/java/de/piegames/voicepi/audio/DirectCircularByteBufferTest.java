@@ -0,0 +1,34 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/** Runs all tests of {@link CircularByteBufferTest} on direct memory */
+public class DirectCircularByteBufferTest extends CircularByteBufferTest {
+
+	@Override
+	protected CircularByteBuffer newBuffer(int capacity) {
+		return new DirectCircularByteBuffer(capacity);
+	}
+
+	/** After releasing, readers get EOF and writes are ignored. Pinned memory stays until the pin is closed. */
+	@Test
+	public void testRelease() {
+		DirectCircularByteBuffer buffer = new DirectCircularByteBuffer(8);
+		CircularByteBuffer.Reader reader = buffer.newReader();
+		buffer.write(new byte[] { 1, 2, 3, 4 });
+		CircularByteBuffer.Pin pin = buffer.pin(2);
+		buffer.release();
+		assertTrue(buffer.isClosed());
+		assertTrue(buffer.isReleased());
+		assertEquals(0, reader.available());
+		assertEquals(0, reader.get(new byte[4], 0, 4));
+		assertEquals(0, buffer.write(new byte[] { 5 }));
+		assertEquals(3, buffer.slice(2, 2).get());
+		pin.close();
+		assertTrue(buffer.freed);
+		// Releasing twice does nothing
+		buffer.release();
+	}
+}
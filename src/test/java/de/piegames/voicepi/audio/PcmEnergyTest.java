@@ -0,0 +1,52 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import org.junit.Test;
+
+public class PcmEnergyTest {
+
+	/** The energy of every supported format must match a straightforward computation, also for chunks that don't start at the beginning of the array */
+	@Test
+	public void testFormats() {
+		for (boolean bigEndian : new boolean[] { false, true }) {
+			testFormat(new AudioFormat(16000, 16, 1, true, bigEndian));
+			testFormat(new AudioFormat(Encoding.PCM_FLOAT, 48000, 32, 1, 4, 48000, bigEndian));
+		}
+	}
+
+	private void testFormat(AudioFormat format) {
+		Random random = new Random(42);
+		ByteBuffer data = ByteBuffer.allocate(4000).order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		boolean isFloat = format.getEncoding() == Encoding.PCM_FLOAT;
+		while (data.hasRemaining())
+			if (isFloat)
+				data.putFloat(random.nextFloat() * 2 - 1);
+			else
+				data.putShort((short) random.nextInt());
+
+		// Decode 100 bytes at a time from the middle of a scratch array, the rest of the array must not be taken into account
+		PcmEnergy.SampleDecoder decoder = PcmEnergy.decoderFor(format);
+		byte[] scratch = new byte[300];
+		for (int pos = 0; pos < 4000; pos += 100) {
+			System.arraycopy(data.array(), pos, scratch, 12, 100);
+			double sum = 0;
+			for (int i = pos; i < pos + 100; i += format.getFrameSize()) {
+				double sample = isFloat ? data.getFloat(i) : data.getShort(i) / 32768d;
+				sum += sample * sample;
+			}
+			assertEquals(format.toString(), sum, decoder.sumOfSquares(scratch, 12, 112), 1e-3);
+		}
+	}
+
+	/** Formats that can't be decoded count as silence */
+	@Test
+	public void testUnsupported() {
+		byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		assertEquals(0, PcmEnergy.decoderFor(new AudioFormat(16000, 8, 1, true, false)).sumOfSquares(data, 0, data.length), 0);
+	}
+}
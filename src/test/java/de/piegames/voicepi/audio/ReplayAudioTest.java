@@ -0,0 +1,70 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.Test;
+
+public class ReplayAudioTest {
+
+	/** Writes a file with a square wave of the given volumes, each one lasting for a second */
+	private static File createFile(float... volumes) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(volumes.length * 32000).order(ByteOrder.LITTLE_ENDIAN);
+		for (float volume : volumes)
+			for (int i = 0; i < 16000; i++)
+				data.putShort((short) ((i % 2 == 0 ? 1 : -1) * volume * 32768));
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data.array()), Audio.FORMAT, volumes.length * 16000), Type.WAVE, file);
+		return file;
+	}
+
+	/** Both commands are found one after another, then the replay ends */
+	@Test
+	public void testReplay() throws IOException {
+		ReplayAudio audio = new ReplayAudio(null, createFile(0.01f, 0.01f, 0.1f, 0.005f, 0.005f, 0.1f, 0.002f, 0.002f), 0);
+		audio.init();
+		try (AudioSegment first = audio.recordCommand()) {
+			assertNotNull(first);
+			assertEquals(1.7f, first.getFrameLength() / 16000f, 0.07f);
+		}
+		float position = audio.getPosition();
+		assertTrue(position < 5);
+		try (AudioSegment second = audio.recordCommand()) {
+			assertNotNull(second);
+			assertEquals(1.7f, second.getFrameLength() / 16000f, 0.07f);
+		}
+		assertTrue(audio.getPosition() > position);
+		assertFalse(audio.isDrained());
+		assertNull(audio.recordCommand());
+		assertNull(audio.recordCommand());
+		assertTrue(audio.isDrained());
+		assertEquals(8, audio.getPosition(), 0.01f);
+		audio.close();
+	}
+
+	/** Replaying at a speed limit takes about as long as it should */
+	@Test
+	public void testSpeed() throws IOException {
+		ReplayAudio audio = new ReplayAudio(null, createFile(0.01f, 0.01f), 4);
+		audio.init();
+		long start = System.nanoTime();
+		try (CircularBufferInputStream in = audio.normalListening2()) {
+			byte[] data = new byte[4096];
+			while (in.read(data) != -1)
+				;
+		}
+		assertEquals(0.5f, (System.nanoTime() - start) / 1e9f, 0.1f);
+		audio.close();
+	}
+}
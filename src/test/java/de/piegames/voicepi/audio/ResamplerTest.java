@@ -0,0 +1,94 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import org.junit.Test;
+
+public class ResamplerTest {
+
+	/** A sine wave with the given frequency and amplitude 0.5 in float format */
+	private static AudioInputStream sine(float sampleRate, float frequency, float seconds) {
+		int frames = (int) (sampleRate * seconds);
+		ByteBuffer data = ByteBuffer.allocate(frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < frames; i++)
+			data.putFloat((float) (0.5 * Math.sin(2 * Math.PI * frequency * i / sampleRate)));
+		return new AudioInputStream(new ByteArrayInputStream(data.array()), new AudioFormat(Encoding.PCM_FLOAT, sampleRate, 32, 1, 4, sampleRate, false), frames);
+	}
+
+	private static short[] toShorts(byte[] data) {
+		short[] samples = new short[data.length / 2];
+		ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+		return samples;
+	}
+
+	/** Compares the output of an ideal resampler for a sine to the actual one, ignoring the edges */
+	private static void assertSine(short[] samples, int channels, float sampleRate, float frequency) {
+		int frames = samples.length / channels;
+		double error = 0;
+		for (int i = 100; i < frames - 100; i++)
+			for (int c = 0; c < channels; c++)
+				error = Math.max(error, Math.abs(samples[i * channels + c] / 32768.0 - 0.5 * Math.sin(2 * Math.PI * frequency * i / sampleRate)));
+		assertTrue("Maximum error " + error, error < 0.01);
+	}
+
+	/** Jack's float format to the format used for recognition */
+	@Test
+	public void testDownsample() throws IOException {
+		AudioInputStream in = Audio.formatStream(sine(48000, 1000, 1), Audio.FORMAT);
+		assertEquals(16000, in.getFrameLength());
+		short[] samples = toShorts(Audio.readAllBytes(in));
+		assertEquals(16000, samples.length);
+		assertSine(samples, 1, 16000, 1000);
+	}
+
+	/** Frequencies above the new Nyquist frequency get filtered out instead of aliasing */
+	@Test
+	public void testAliasing() throws IOException {
+		short[] samples = toShorts(Audio.readAllBytes(Audio.formatStream(sine(48000, 12000, 1), Audio.FORMAT)));
+		for (int i = 100; i < samples.length - 100; i++)
+			assertEquals(0, samples[i] / 32768f, 0.01f);
+	}
+
+	/** Uneven ratios and more channels */
+	@Test
+	public void testUpsample() throws IOException {
+		AudioFormat target = new AudioFormat(44100, 16, 2, true, false);
+		short[] samples = toShorts(Audio.readAllBytes(Audio.formatStream(sine(16000, 440, 1), target)));
+		assertEquals(44100 * 2, samples.length);
+		assertSine(samples, 2, 44100, 440);
+	}
+
+	/** Only the encoding changes, which must not alter the samples */
+	@Test
+	public void testSameRate() throws IOException {
+		short[] samples = toShorts(Audio.readAllBytes(Audio.formatStream(sine(16000, 440, 0.5f), Audio.FORMAT)));
+		assertEquals(8000, samples.length);
+		for (int i = 0; i < samples.length; i++)
+			assertEquals(Math.round(0.5 * Math.sin(2 * Math.PI * 440 * i / 16000) * 32767), samples[i], 1);
+	}
+
+	/** Fewer taps still give a clean signal in the pass band, the number of taps is rounded up to a multiple of four */
+	@Test
+	public void testTaps() throws IOException {
+		Resampler resampler = Resampler.forRates(48000, 16000, 14);
+		assertEquals(16, resampler.getTaps());
+		assertSame(resampler, Resampler.forRates(48000, 16000, 16));
+		assertNotSame(resampler, Resampler.forRates(48000, 16000));
+		Resampler.setDefaultTaps(16);
+		try {
+			assertSame(resampler, Resampler.forRates(48000, 16000));
+			assertSine(toShorts(Audio.readAllBytes(Resampler.convert(sine(48000, 1000, 1), Audio.FORMAT))), 1, 16000, 1000);
+		} finally {
+			Resampler.setDefaultTaps(Resampler.DEFAULT_TAPS);
+		}
+	}
+}
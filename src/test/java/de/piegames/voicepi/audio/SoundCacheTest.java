@@ -0,0 +1,117 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.junit.Test;
+
+public class SoundCacheTest {
+
+	private static byte[] writeFile(File file, short value) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(3200).order(ByteOrder.LITTLE_ENDIAN);
+		while (data.hasRemaining())
+			data.putShort(value);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data.array()), Audio.FORMAT, 1600), Type.WAVE, file);
+		return data.array();
+	}
+
+	@Test
+	public void testCache() throws IOException, UnsupportedAudioFileException {
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		byte[] content = writeFile(file, (short) 1000);
+		file.setLastModified(1000000);
+
+		SoundCache cache = new SoundCache();
+		try (AudioInputStream in = cache.open(file, null)) {
+			assertTrue(in.getFormat().matches(Audio.FORMAT));
+			assertEquals(1600, in.getFrameLength());
+			assertArrayEquals(content, Audio.readAllBytes(in));
+		}
+		SoundCache.Entry entry = cache.load(file, null);
+		assertSame(entry, cache.load(file, null));
+
+		// Converted to the output format once
+		AudioFormat output = AudioMixer.mixingFormat(16000, 1);
+		try (AudioInputStream in = cache.open(file, output)) {
+			assertTrue(in.getFormat().matches(output));
+			ByteBuffer data = ByteBuffer.wrap(Audio.readAllBytes(in)).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(1600 * 4, data.remaining());
+			assertEquals(1000 / 32768f, data.getFloat(100), 0.0001f);
+		}
+		entry = cache.load(file, output);
+		assertSame(entry, cache.load(file, output));
+
+		// Modifications are noticed
+		content = writeFile(file, (short) -1000);
+		file.setLastModified(2000000);
+		assertNotSame(entry, cache.load(file, output));
+		try (AudioInputStream in = cache.open(file, null)) {
+			assertArrayEquals(content, Audio.readAllBytes(in));
+		}
+	}
+
+	/** The cache keeps its own copy of the sound, so it does not change if the file gets edited in place */
+	@Test
+	public void testCopy() throws IOException, UnsupportedAudioFileException {
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		byte[] content = writeFile(file, (short) 1000);
+		file.setLastModified(1000000);
+
+		SoundCache cache = new SoundCache();
+		cache.open(file, null).close();
+		writeFile(file, (short) -1000);
+		// Pretend the modification went unnoticed
+		file.setLastModified(1000000);
+		try (AudioInputStream in = cache.open(file, null)) {
+			assertArrayEquals(content, Audio.readAllBytes(in));
+		}
+	}
+
+	/** Preloading drops everything that has not been registered */
+	@Test
+	public void testPreload() throws IOException, UnsupportedAudioFileException {
+		File file1 = File.createTempFile("voicepi", ".wav"), file2 = File.createTempFile("voicepi", ".wav");
+		file1.deleteOnExit();
+		file2.deleteOnExit();
+		writeFile(file1, (short) 1000);
+		writeFile(file2, (short) 1000);
+
+		SoundCache cache = new SoundCache();
+		cache.open(file1, null).close();
+		cache.register(file2);
+		cache.preload(null);
+		assertEquals(1, cache.entries.size());
+		assertTrue(cache.entries.containsKey(file2.getAbsolutePath()));
+	}
+
+	/** Recording catches every registration, also of files that were registered before */
+	@Test
+	public void testRecording() {
+		File file1 = new File("a.wav"), file2 = new File("b.wav");
+		SoundCache cache = new SoundCache();
+		cache.register(file1);
+		cache.startRecording();
+		cache.register(file1);
+		cache.register(file2);
+		assertEquals(new HashSet<>(Arrays.asList(file1.getAbsoluteFile(), file2.getAbsoluteFile())), cache.stopRecording());
+		cache.register(new File("c.wav"));
+		assertTrue(cache.stopRecording().isEmpty());
+		assertEquals(3, cache.getRegistered().size());
+	}
+}
@@ -0,0 +1,119 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+import de.piegames.voicepi.audio.SpeechDetector.State;
+
+public class SpeechDetectorTest {
+
+	/** 20ms chunks at 16kHz */
+	private static final int CHUNK = 320;
+
+	/** Feeds a square wave with the given RMS */
+	private static void feed(SpeechDetector detector, float rms, float seconds) {
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < CHUNK; i++)
+			chunk.putShort((short) ((i % 2 == 0 ? 1 : -1) * rms * 32768));
+		for (int i = 0; i < seconds * 50; i++)
+			detector.process(chunk.array(), 0, CHUNK * 2);
+	}
+
+	private static SpeechDetector newDetector() {
+		NoiseFloorTracker noiseFloor = new NoiseFloorTracker(0, 0.5f, 5, 10);
+		noiseFloor.setFormat(Audio.FORMAT);
+		noiseFloor.process(0.01f, CHUNK);
+		return new SpeechDetector(new EnergyActivityDetector(null), noiseFloor, Audio.FORMAT, 0.25f, 10, 0.8f, 9.5f);
+	}
+
+	/** All decisions depend on the amount of audio processed, not on how long processing it took */
+	@Test
+	public void testCommand() {
+		SpeechDetector detector = newDetector();
+		feed(detector, 0.01f, 5);
+		assertEquals(State.QUIET, detector.getState());
+		feed(detector, 0.05f, 1);
+		assertEquals(State.SPEAKING, detector.getState());
+		feed(detector, 0.005f, 0.5f);
+		assertEquals(State.PAUSED_SPEAKING, detector.getState());
+		// Resuming needs less volume than starting
+		feed(detector, 0.017f, 0.5f);
+		assertEquals(State.SPEAKING, detector.getState());
+		feed(detector, 0.005f, 1);
+		assertEquals(State.QUIET, detector.getState());
+		assertFalse(detector.aborted());
+		assertTrue(detector.isDone());
+		assertEquals(8 * 16000, detector.getPosition());
+		// From the first speech chunk to the last one, without the pause after it
+		assertEquals(5 * 16000 * 2, detector.getSpeechStart());
+		assertEquals(7 * 16000 * 2, detector.getSpeechEnd());
+	}
+
+	@Test
+	public void testAborted() {
+		SpeechDetector detector = newDetector();
+		feed(detector, 0.01f, 10.1f);
+		assertEquals(State.TIMEOUT, detector.getState());
+
+		detector = newDetector();
+		feed(detector, 0.05f, 0.1f);
+		feed(detector, 0.005f, 0.1f);
+		assertEquals(State.TOO_SHORT, detector.getState());
+		assertTrue(detector.aborted());
+	}
+
+	/** The noise floor follows the background noise, but not speech */
+	@Test
+	public void testNoiseFloor() {
+		NoiseFloorTracker noiseFloor = new NoiseFloorTracker(1, 0.5f, 5, 10);
+		noiseFloor.setFormat(Audio.FORMAT);
+		for (int i = 0; i < 50; i++)
+			noiseFloor.process(0.01f, CHUNK);
+		assertTrue(noiseFloor.isCalibrated());
+		assertEquals(0.01f, noiseFloor.getNoiseFloor(), 0.0001f);
+		// Talking for a few seconds
+		for (int i = 0; i < 150; i++)
+			noiseFloor.process(0.2f, CHUNK);
+		assertEquals(0.01f, noiseFloor.getNoiseFloor(), 0.001f);
+		// The room got louder by 6dB
+		for (int i = 0; i < 150; i++)
+			noiseFloor.process(0.02f, CHUNK);
+		assertEquals(0.02f, noiseFloor.getNoiseFloor(), 0.001f);
+	}
+
+	/** The spectral detector must learn loud stationary noise and still detect a voice-like signal above it */
+	@Test
+	public void testSpectral() {
+		VoiceActivityDetector vad = new SpectralActivityDetector(null);
+		vad.reset(Audio.FORMAT, null);
+		Random random = new Random(42);
+		ByteBuffer chunk = ByteBuffer.allocate(CHUNK * 2).order(ByteOrder.LITTLE_ENDIAN);
+		double noise = 0;
+		int t = 0;
+		boolean speechDuringNoise = false, speechDuringVoice = true;
+		for (int c = 0; c < 200; c++) {
+			// One second of machine hum with rumble, then one second with a voice-like harmonic signal on top of it, then the hum again
+			boolean voice = c >= 100 && c < 150;
+			chunk.clear();
+			for (int i = 0; i < CHUNK; i++, t++) {
+				noise = 0.9 * noise + 0.05 * random.nextGaussian();
+				double sample = noise + 0.1 * Math.sin(2 * Math.PI * 100 * t / 16000);
+				if (voice)
+					for (int h = 1; h <= 15; h++)
+						sample += 0.2 / h * Math.sin(2 * Math.PI * 180 * h * t / 16000);
+				chunk.putShort((short) (sample * 32768 / 2));
+			}
+			boolean speech = vad.isSpeech(chunk.array(), 0, CHUNK * 2);
+			if (voice)
+				speechDuringVoice &= speech;
+			else if (c >= 25 && c < 100 || c >= 160)
+				speechDuringNoise |= speech;
+		}
+		assertFalse(speechDuringNoise);
+		assertTrue(speechDuringVoice);
+	}
+}
@@ -0,0 +1,57 @@
+package de.piegames.voicepi.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat.Type;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.junit.Test;
+
+public class WavFileTest {
+
+	private static File write(AudioFormat format, byte[] data) throws IOException {
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, data.length / format.getFrameSize()), Type.WAVE, file);
+		return file;
+	}
+
+	/** The mapped data is the same Java reads */
+	@Test
+	public void testRead() throws IOException, UnsupportedAudioFileException {
+		byte[] data = new byte[4000];
+		new Random(0).nextBytes(data);
+		for (AudioFormat format : new AudioFormat[] { Audio.FORMAT, new AudioFormat(44100, 16, 2, true, false), new AudioFormat(8000, 8, 1, false, false),
+				new AudioFormat(Encoding.PCM_FLOAT, 16000, 32, 1, 4, 16000, false) }) {
+			File file = write(format, data);
+			WavFile wav = WavFile.open(file);
+			assertTrue(wav.getFormat().toString(), wav.getFormat().matches(format));
+			assertEquals(data.length / format.getFrameSize(), wav.getFrameLength());
+			ByteBuffer mapped = wav.getData();
+			byte[] read = new byte[mapped.remaining()];
+			mapped.get(read);
+			try (AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+				assertArrayEquals(Audio.readAllBytes(in), read);
+			}
+			assertArrayEquals(read, Audio.readAllBytes(wav.getStream()));
+		}
+	}
+
+	@Test(expected = UnsupportedAudioFileException.class)
+	public void testNotWav() throws IOException, UnsupportedAudioFileException {
+		File file = File.createTempFile("voicepi", ".wav");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "This is not a WAV file".getBytes());
+		WavFile.open(file);
+	}
+}
@@ -0,0 +1,36 @@
+package de.piegames.voicepi.stt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class CommandGrammarTest {
+
+	/** Every command is one alternative of the public rule, in upper case */
+	@Test
+	public void testJsgf() {
+		CommandGrammar grammar = new CommandGrammar(Arrays.asList("turn on  the light", "EXIT", " "));
+		assertEquals("#JSGF V1.0;\n\ngrammar " + grammar.getName() + ";\n\npublic <command> = EXIT\n\t| TURN ON THE LIGHT;\n", grammar.toJsgf());
+		assertEquals(grammar.getName() + ".gram", grammar.getFileName());
+	}
+
+	/** The name only depends on the commands, not on their order or case */
+	@Test
+	public void testName() {
+		assertEquals(new CommandGrammar(Arrays.asList("EXIT", "RELOAD")).getName(), new CommandGrammar(Arrays.asList("reload", "exit")).getName());
+		assertNotEquals(new CommandGrammar(Arrays.asList("EXIT", "RELOAD")).getName(), new CommandGrammar(Arrays.asList("EXIT")).getName());
+	}
+
+	/** Punctuation gets removed, so that no characters with a meaning in JSGF remain */
+	@Test
+	public void testPunctuation() {
+		assertEquals("public <command> = A C;", new CommandGrammar(Arrays.asList("a|; c")).toJsgf().split("\n")[4]);
+		assertEquals("public <command> = WHAT'S UP 2;", new CommandGrammar(Arrays.asList("\"What's up?\" & 2!")).toJsgf().split("\n")[4]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmpty() {
+		new CommandGrammar(Arrays.asList(""));
+	}
+}
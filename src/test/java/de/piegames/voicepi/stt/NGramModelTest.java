@@ -0,0 +1,72 @@
+package de.piegames.voicepi.stt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class NGramModelTest {
+
+	private static final List<String> COMMANDS = Arrays.asList("TURN ON THE LIGHT", "TURN OFF THE LIGHT", "turn on the radio", "WHAT TIME IS IT", "EXIT");
+
+	/** After any history, the probabilities of all words that may follow sum up to one */
+	@Test
+	public void testNormalized() {
+		NGramModel model = new NGramModel(COMMANDS, 3);
+		List<String> next = new ArrayList<>(model.getWords());
+		next.add(NGramModel.SENTENCE_END);
+		List<List<String>> histories = new ArrayList<>();
+		histories.add(Collections.emptyList());
+		for (String a : model.vocabulary) {
+			histories.add(Arrays.asList(a));
+			for (String b : model.vocabulary)
+				histories.add(Arrays.asList(a, b));
+		}
+		for (List<String> history : histories) {
+			double sum = 0;
+			for (String word : next)
+				sum += model.probability(word, history);
+			assertEquals("After " + history, 1, sum, 1e-9);
+		}
+	}
+
+	/** Seen continuations are more likely than unseen ones */
+	@Test
+	public void testBackoff() {
+		NGramModel model = new NGramModel(COMMANDS, 3);
+		assertEquals(11, model.getWords().size());
+		assertTrue(model.probability("LIGHT", Arrays.asList("ON", "THE")) > model.probability("TIME", Arrays.asList("ON", "THE")));
+		assertTrue(model.probability("TIME", Arrays.asList("ON", "THE")) > 0);
+		assertEquals(0, model.probability(NGramModel.SENTENCE_START, Arrays.asList("THE")), 0);
+	}
+
+	/** Punctuation gets removed from the words, words consisting of punctuation only get dropped */
+	@Test
+	public void testTokenize() {
+		assertEquals(Arrays.asList("HELLO", "WHAT'S", "UP", "20"), NGramModel.tokenize(" Hello, \"what's\" up?! - 20% "));
+		assertEquals(Collections.emptyList(), NGramModel.tokenize("  & "));
+	}
+
+	/** The ARPA header matches the entries */
+	@Test
+	public void testArpa() {
+		String arpa = new NGramModel(COMMANDS, 3).toArpa();
+		String[] lines = arpa.split("\n");
+		assertEquals("\\data\\", lines[0]);
+		assertEquals("ngram 1=13", lines[1]);
+		assertTrue(arpa.contains("-99.0000 <s> "));
+		assertTrue(arpa.endsWith("\\end\\\n"));
+		int unigrams = 0;
+		boolean inUnigrams = false;
+		for (String line : lines) {
+			if (line.startsWith("\\"))
+				inUnigrams = line.equals("\\1-grams:");
+			else if (inUnigrams && !line.isEmpty())
+				unigrams++;
+		}
+		assertEquals(13, unigrams);
+	}
+}
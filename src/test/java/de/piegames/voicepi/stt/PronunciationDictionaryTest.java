@@ -0,0 +1,52 @@
+package de.piegames.voicepi.stt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class PronunciationDictionaryTest {
+
+	/** Known words come from the dictionary including their variants, unknown ones get guessed */
+	@Test
+	public void testLookup() throws IOException {
+		File file = File.createTempFile("voicepi", ".dict");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.asList("light L AY T", "the DH AH", "the(2) DH IY", "turn T ER N"));
+		PronunciationDictionary dictionary = new PronunciationDictionary(file.toURI().toURL());
+		Map<String, List<String>> pronunciations = dictionary.lookup(Arrays.asList("THE", "Light", "RASPBERRY"));
+		assertEquals(Arrays.asList("DH AH", "DH IY"), pronunciations.get("THE"));
+		assertEquals(Arrays.asList("L AY T"), pronunciations.get("LIGHT"));
+		assertEquals(1, pronunciations.get("RASPBERRY").size());
+		assertTrue(pronunciations.get("RASPBERRY").get(0).matches("[A-Z]+( [A-Z]+)*"));
+		assertFalse(pronunciations.containsKey("TURN"));
+
+		assertEquals("LIGHT\tL AY T\nTHE\tDH AH\nTHE(2)\tDH IY\n", dictionary.compile(Arrays.asList("THE", "LIGHT")));
+	}
+
+	/** Commands with punctuation and numbers get the same words in the language model and the dictionary, and nothing fails to be pronounced */
+	@Test
+	public void testNormalized() throws IOException {
+		File file = File.createTempFile("voicepi", ".dict");
+		file.deleteOnExit();
+		Files.write(file.toPath(), Arrays.asList("light L AY T", "turn T ER N", "what's W AH T S"));
+		PronunciationDictionary dictionary = new PronunciationDictionary(file.toURI().toURL());
+		NGramModel model = new NGramModel(Arrays.asList("Turn the light up 20%, please!", "What's up?", "&"), 3);
+		Map<String, List<String>> pronunciations = dictionary.lookup(model.getWords());
+		assertEquals(model.getWords(), pronunciations.keySet());
+		assertEquals(Arrays.asList("L AY T"), pronunciations.get("LIGHT"));
+		assertEquals(Arrays.asList("W AH T S"), pronunciations.get("WHAT'S"));
+		assertEquals(Arrays.asList("T UW Z IH R OW"), pronunciations.get("20"));
+
+		// Words that can't be pronounced at all are left out instead of failing
+		assertFalse(dictionary.lookup(Arrays.asList("\u00dc", "TURN")).containsKey("\u00dc"));
+		assertNull(PronunciationDictionary.guess("%"));
+	}
+}